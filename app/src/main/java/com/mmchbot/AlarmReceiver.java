@@ -3,90 +3,78 @@ package com.mmchbot;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.os.PowerManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
-import okhttp3.*;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AlarmReceiver extends BroadcastReceiver {
 
+    // goAsync() gives the receiver about 10 s before the system may freeze or kill a process the
+    // alarm started cold; stop waiting for the drains a little before that.
+    private static final long DRAIN_WAIT_MS = 8_000;
+
     @Override
     public void onReceive(Context context, Intent intent) {
-        // 1. Acquire a temporary WakeLock to ensure the device stays awake 
-        // long enough to send the post.
-        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-        PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MMCHBot::AlarmWakeLock");
-        wl.acquire(60 * 1000L); // Hold for 60 seconds max
+        // 1. Keep the device awake until the drains are done or the wait runs out; each drain step
+        // holds the shared lock itself too (so it shows in power.wake_ms)
+        WakeScope.init(context);
+        WakeScope.acquire();
 
-        String filePath = intent.getStringExtra("filePath");
-        if (filePath == null) {
-            wl.release();
-            return;
+        PendingResult pending = goAsync();
+        AtomicBoolean finished = new AtomicBoolean();
+        Runnable finish = () -> {
+            if (!finished.compareAndSet(false, true)) return;
+            // 3. Release the lock exactly once, whichever comes first
+            WakeScope.release();
+            pending.finish();
+        };
+        try {
+            // Load Settings (every hosted bot; the single alarm covers all of their posts)
+            List<BotConfig> bots = ConfigStore.get(context).current();
+            if (bots.isEmpty()) throw new IOException("Bot not configured");
+
+            OutboxWorker outbox = OutboxWorker.get(context);
+            importLegacyPost(outbox, intent.getStringExtra("filePath"), bots.get(0));
+
+            // 2. Drain every post due in this window through the shared outbox worker (it re-arms the alarm).
+            // The broadcast stays open until the drains finish, so the process isn't frozen mid-send; a
+            // paced drain that outlasts the wait keeps going for as long as the process does.
+            List<CompletableFuture<Integer>> drains = new ArrayList<>();
+            for (BotConfig bot : bots) drains.add(outbox.drain(bot.token, PostScheduler.BATCH_WINDOW_MS));
+            CompletableFuture.allOf(drains.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+                int sent = 0;
+                for (CompletableFuture<Integer> drain : drains) sent += drain.join();
+                Log.d("AlarmReceiver", "Scheduled posts sent: " + sent);
+                finish.run();
+            });
+            new Handler(Looper.getMainLooper()).postDelayed(finish, DRAIN_WAIT_MS);
+        } catch (Exception e) {
+            Log.e("AlarmReceiver", "Failed: " + e.getMessage());
+            finish.run();
         }
+    }
 
+    // Alarms armed before the outbox existed still point at a pending_post_*.json file.
+    private void importLegacyPost(OutboxWorker outbox, String filePath, BotConfig bot) {
+        if (filePath == null) return;
         File file = new File(filePath);
-        if (!file.exists()) {
-            wl.release();
+        if (!file.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            Map<String, String> data = new Gson().fromJson(reader, new TypeToken<Map<String, String>>(){}.getType());
+            outbox.enqueue(new OutboxItem(bot.botId, "legacy:" + file.getName(), bot.channel, data.get("photo"), data.get("desc"),
+                data.get("link"), 0, System.currentTimeMillis()));
+        } catch (Exception e) {
+            Log.e("AlarmReceiver", "Legacy post unreadable: " + e.getMessage());
             return;
         }
-
-        // 2. Start a background thread (Network cannot run on main thread)
-        new Thread(() -> {
-            try {
-                // Load Settings (To get Token/Channel)
-                File settingsFile = new File(context.getFilesDir(), "settings.json");
-                Map<String, String> settings;
-                try (FileReader reader = new FileReader(settingsFile)) {
-                     settings = new Gson().fromJson(reader, new TypeToken<Map<String, String>>(){}.getType());
-                }
-                
-                String token = settings.get("token");
-                String channel = settings.get("channel");
-
-                // Load Post Data
-                Map<String, String> data;
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    data = new Gson().fromJson(reader, new TypeToken<Map<String, String>>(){}.getType());
-                }
-
-                if (token != null && channel != null) {
-                    postRaw(token, channel, data);
-                    Log.d("AlarmReceiver", "Scheduled Post Sent!");
-                }
-                
-                // Cleanup
-                file.delete();
-
-            } catch (Exception e) {
-                Log.e("AlarmReceiver", "Failed: " + e.getMessage());
-            } finally {
-                // 3. Always release the lock
-                if (wl.isHeld()) wl.release();
-            }
-        }).start();
-    }
-
-    private void postRaw(String token, String channel, Map<String, String> data) {
-        try {
-            OkHttpClient client = new OkHttpClient();
-            String keyboard = "{\"inline_keyboard\":[[{\"text\":\"📥 Download Movie 📥\",\"url\":\"" + data.get("link") + "\"}]]}";
-
-            MultipartBody.Builder builder = new MultipartBody.Builder().setType(MultipartBody.FORM)
-                .addFormDataPart("chat_id", channel)
-                .addFormDataPart("photo", data.get("photo"))
-                .addFormDataPart("caption", data.get("desc"))
-                .addFormDataPart("parse_mode", "HTML")
-                .addFormDataPart("reply_markup", keyboard);
-
-            Request request = new Request.Builder()
-                .url("https://api.telegram.org/bot" + token + "/sendPhoto")
-                .post(builder.build())
-                .build();
-
-            client.newCall(request).execute().close();
-        } catch (Exception e) { e.printStackTrace(); }
+        file.delete();
     }
 }
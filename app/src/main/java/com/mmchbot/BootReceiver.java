@@ -12,6 +12,14 @@ public class BootReceiver extends BroadcastReceiver {
             if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction()) || 
                 Intent.ACTION_MY_PACKAGE_REPLACED.equals(intent.getAction())) {
                 
+                // Alarms don't survive a reboot; re-arm the scheduler for any queued post.
+                // The service drains the outbox anyway, so it starts even if this fails.
+                try {
+                    PostScheduler.arm(context);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+
                 Intent serviceIntent = new Intent(context, BotService.class);
                 context.startForegroundService(serviceIntent);
                 
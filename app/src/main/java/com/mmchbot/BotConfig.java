@@ -0,0 +1,126 @@
+package com.mmchbot;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// One bot's settings, immutable: ConfigStore swaps in whole new snapshots. settings.json keeps the
+// primary bot at the top level (what MainActivity edits); an optional "bots" array adds more bots,
+// each entry overriding the top-level values.
+//   { "token": "...", "channel": "@main", "gemini": "...", "bots": [ { "token": "...", "channel": "@other" } ] }
+public class BotConfig {
+
+    public static final String SETTINGS_FILE = "settings.json";
+    public static final String DEFAULT_TELEGRAM_API = "https://api.telegram.org";
+    public static final String DEFAULT_GEMINI_API = "https://generativelanguage.googleapis.com/v1beta/models";
+
+    public final String token;
+    public final long botId;
+    public final String channel;
+    public final String geminiKey;
+    public final String prompt;
+    public final PromptTemplate promptTemplate;
+    public final String model;
+    public final String fallbackModels;
+    public final int visionMinEdge;
+    public final int visionMaxBytes;
+    // Push ingest (see WebhookServer): "ingest" is "poll" (default) or "push".
+    public final boolean pushIngest;
+    public final String webhookSecret;
+    public final String webhookUrl;
+    public final String webhookBind;
+    public final int webhookPort;
+    // Telegram user ids allowed to run operator commands (/ingest, /stats), comma-separated: "admins": "123,456".
+    // Empty means nobody.
+    public final Set<Long> admins;
+    // API endpoints, overridable so the whole process can be pointed at local stand-ins
+    // (e.g. a load-test rig, see BotLoadTest); a reload switches running bots over.
+    public final String telegramApi;
+    public final String geminiApi;
+
+    private BotConfig(JsonObject base, JsonObject own) {
+        token = string(base, own, "token", "");
+        botId = botId(token);
+        channel = string(base, own, "channel", "");
+        geminiKey = string(base, own, "gemini", "");
+        prompt = string(base, own, "prompt", "");
+        promptTemplate = PromptTemplate.compile(prompt);
+        model = string(base, own, "model", "gemini-1.5-flash");
+        fallbackModels = string(base, own, "fallback_models", "gemini-flash-lite-latest");
+        visionMinEdge = parseInt(string(base, own, "vision_min_edge", ""), ImagePreprocessor.DEFAULT_MIN_EDGE);
+        visionMaxBytes = parseInt(string(base, own, "vision_max_kb", ""), ImagePreprocessor.DEFAULT_MAX_BYTES / 1024) * 1024;
+        pushIngest = string(base, own, "ingest", "poll").equalsIgnoreCase("push");
+        webhookSecret = string(base, own, "webhook_secret", "");
+        webhookUrl = string(base, own, "webhook_url", "");
+        // One server serves every bot, so these two are only read from the top level.
+        webhookBind = string(base, base, "webhook_bind", "127.0.0.1");
+        webhookPort = parseInt(string(base, base, "webhook_port", ""), 8088);
+        admins = parseIds(string(base, own, "admins", ""));
+        telegramApi = trimSlash(string(base, base, "telegram_api", DEFAULT_TELEGRAM_API));
+        geminiApi = trimSlash(string(base, base, "gemini_api", DEFAULT_GEMINI_API));
+    }
+
+    // Every configured bot with a token, primary first; a token listed twice only runs once.
+    public static List<BotConfig> parse(Reader reader) {
+        List<BotConfig> bots = new ArrayList<>();
+        JsonElement root = JsonParser.parseReader(reader);
+        if (!root.isJsonObject()) return bots;
+        JsonObject base = root.getAsJsonObject();
+        Set<String> seen = new HashSet<>();
+        add(bots, seen, new BotConfig(base, base));
+        JsonElement extra = base.get("bots");
+        if (extra != null && extra.isJsonArray()) {
+            for (JsonElement e : (JsonArray) extra) {
+                if (e.isJsonObject()) add(bots, seen, new BotConfig(base, e.getAsJsonObject()));
+            }
+        }
+        return bots;
+    }
+
+    // The numeric part of "123456:ABC..." is the bot's user id; it keys tenant data in BotDatabase.
+    public static long botId(String token) {
+        int colon = token != null ? token.indexOf(':') : -1;
+        if (colon <= 0) return 0;
+        try { return Long.parseLong(token.substring(0, colon)); }
+        catch (NumberFormatException e) { return 0; }
+    }
+
+    public boolean isAdmin(long userId) {
+        return userId != 0 && admins.contains(userId);
+    }
+
+    private static void add(List<BotConfig> bots, Set<String> seen, BotConfig config) {
+        if (!config.token.isEmpty() && seen.add(config.token)) bots.add(config);
+    }
+
+    private static String string(JsonObject base, JsonObject own, String key, String fallback) {
+        JsonElement v = own.get(key);
+        if (v == null || !v.isJsonPrimitive()) v = base.get(key);
+        return v != null && v.isJsonPrimitive() ? v.getAsString() : fallback;
+    }
+
+    private static String trimSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    private static Set<Long> parseIds(String value) {
+        Set<Long> ids = new HashSet<>();
+        for (String id : value.split(",")) {
+            try { ids.add(Long.parseLong(id.trim())); }
+            catch (NumberFormatException ignored) {}
+        }
+        return Collections.unmodifiableSet(ids);
+    }
+
+    private static int parseInt(String value, int fallback) {
+        try { return value == null || value.isEmpty() ? fallback : Integer.parseInt(value.trim()); }
+        catch (NumberFormatException e) { return fallback; }
+    }
+}
@@ -5,77 +5,518 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class BotDatabase extends SQLiteOpenHelper {
 
     private static final String DB_NAME = "bot_brain.db";
-    private static final int DB_VERSION = 1;
-    private static final String TABLE_STATE = "user_states";
-    private static final String COL_CHAT_ID = "chat_id";
-    private static final String COL_STEP = "step";
-    private static final String COL_DATA = "data_json";
+    private static final int DB_VERSION = 7;
+    private static final String TABLE_LEGACY_STATE = "user_states";
+    private static final String TABLE_SESSIONS = "sessions";
+    private static final String SESSION_COLUMNS = "bot_id, chat_id, step, photo, photo_uid, vision_photo, vision_mime, " +
+            "vision_bytes, name, link, descr, post_key, created_at, updated_at";
+    private static final String TABLE_CAPTIONS = "caption_cache";
+    private static final String TABLE_OUTBOX = "outbox";
+    private static final String TABLE_JOURNAL = "update_journal";
+    private static final String TABLE_OFFSETS = "update_offsets";
 
-    public BotDatabase(Context context) {
+    private static BotDatabase instance;
+
+    // Latency of the hot operations in microseconds (db.<op>_us); most finish well under a millisecond.
+    private static final Metrics.Histogram SAVE_STATES = Metrics.histogram("db.save_states_us");
+    private static final Metrics.Histogram GET_SESSION = Metrics.histogram("db.get_session_us");
+    private static final Metrics.Histogram JOURNAL = Metrics.histogram("db.journal_us");
+    private static final Metrics.Histogram GET_CAPTION = Metrics.histogram("db.get_caption_us");
+    private static final Metrics.Histogram PUT_CAPTION = Metrics.histogram("db.put_caption_us");
+    private static final Metrics.Histogram ENQUEUE_OUTBOX = Metrics.histogram("db.enqueue_outbox_us");
+    private static final Metrics.Histogram CLAIM_OUTBOX = Metrics.histogram("db.claim_outbox_us");
+    private static final Metrics.Histogram FINISH_OUTBOX = Metrics.histogram("db.finish_outbox_us");
+
+    private final Context context;
+
+    // One long-lived connection per process (WAL lets readers run alongside the writer).
+    // SQLiteStatement is not thread-safe, so each compiled statement is guarded by its own lock.
+    private SQLiteDatabase conn;
+    private SQLiteStatement upsertSession;
+    private SQLiteStatement insertJournal;
+    private SQLiteStatement deleteJournal;
+    private final Gson gson = new Gson();
+
+    public static synchronized BotDatabase getInstance(Context context) {
+        if (instance == null) instance = new BotDatabase(context.getApplicationContext());
+        return instance;
+    }
+
+    // Tests only: Robolectric gives every test a new application and data directory.
+    static synchronized void reset() {
+        if (instance != null) instance.close();
+        instance = null;
+    }
+
+    private BotDatabase(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        this.context = context;
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE " + TABLE_STATE + " (" +
-                COL_CHAT_ID + " INTEGER PRIMARY KEY, " +
-                COL_STEP + " INTEGER, " +
-                COL_DATA + " TEXT)");
+        createSessions(db);
+        createCaptionCache(db);
+        createOutbox(db);
+        createOutboxIndex(db);
+        createJournal(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldV, int newV) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATE);
-        onCreate(db);
+        // Before v6 there was only ever one bot; its rows are claimed by the primary bot in settings.json.
+        long primaryBot = primaryBotId();
+        if (oldV < 2) createCaptionCache(db);
+        if (oldV < 3) createOutbox(db);
+        else if (oldV < 6) db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN bot_id INTEGER NOT NULL DEFAULT " + primaryBot);
+        if (oldV < 4) createOutboxIndex(db);
+        if (oldV < 5) migrateSessions(db, primaryBot);
+        else if (oldV < 6) addSessionTenant(db, primaryBot);
+        if (oldV < 7) createJournal(db);
+    }
+
+    private long primaryBotId() {
+        List<BotConfig> bots = ConfigStore.get(context).current();
+        return bots.isEmpty() ? 0 : bots.get(0).botId;
+    }
+
+    // Sessions are per (bot, chat): the same admin talks to every bot from the same chat id.
+    private static void createSessions(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_SESSIONS + " (" +
+                "bot_id INTEGER NOT NULL DEFAULT 0, " +
+                "chat_id INTEGER NOT NULL, " +
+                "step INTEGER NOT NULL DEFAULT 0, " +
+                "photo TEXT, photo_uid TEXT, vision_photo TEXT, vision_mime TEXT, " +
+                "vision_bytes INTEGER NOT NULL DEFAULT 0, " +
+                "name TEXT, link TEXT, descr TEXT, post_key TEXT, " +
+                "created_at INTEGER NOT NULL, " +
+                "updated_at INTEGER NOT NULL, " +
+                "PRIMARY KEY (bot_id, chat_id))");
+    }
+
+    // v6 widened the sessions key to (bot_id, chat_id); SQLite can't alter a primary key, so rebuild.
+    private static void addSessionTenant(SQLiteDatabase db, long primaryBot) {
+        String columns = SESSION_COLUMNS.substring("bot_id, ".length());
+        db.execSQL("ALTER TABLE " + TABLE_SESSIONS + " RENAME TO sessions_v5");
+        createSessions(db);
+        db.execSQL("INSERT INTO " + TABLE_SESSIONS + " (" + SESSION_COLUMNS + ") SELECT " + primaryBot + ", " +
+                columns + " FROM sessions_v5");
+        db.execSQL("DROP TABLE sessions_v5");
+    }
+
+    // v5 moved sessions from a JSON blob to one column per field. Existing conversations are
+    // carried over (parsed once, here) so nobody loses a half-finished post on upgrade.
+    private static void migrateSessions(SQLiteDatabase db, long primaryBot) {
+        createSessions(db);
+        Gson gson = new Gson();
+        java.lang.reflect.Type type = new TypeToken<Map<String, String>>(){}.getType();
+        long now = System.currentTimeMillis();
+        try (Cursor cursor = db.rawQuery("SELECT chat_id, step, data_json FROM " + TABLE_LEGACY_STATE, null)) {
+            while (cursor.moveToNext()) {
+                Map<String, String> data = cursor.isNull(2) ? null : gson.fromJson(cursor.getString(2), type);
+                if (data == null) data = new HashMap<>();
+                Session s = new Session();
+                s.step = cursor.getInt(1);
+                s.photo = data.get("photo");
+                s.photoUid = data.get("photo_uid");
+                s.visionPhoto = data.get("vision_photo");
+                s.visionMime = data.get("vision_mime");
+                try { s.visionBytes = Long.parseLong(data.getOrDefault("vision_bytes", "0")); } catch (NumberFormatException ignored) {}
+                s.name = data.get("name");
+                s.link = data.get("link");
+                s.desc = data.get("desc");
+                s.postKey = data.get("post_key");
+                s.createdAt = now;
+                s.updatedAt = now;
+                db.insertWithOnConflict(TABLE_SESSIONS, null, sessionValues(primaryBot, cursor.getLong(0), s), SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        } catch (Exception e) {
+            // No legacy table (or unreadable rows): start with empty sessions rather than fail the upgrade.
+            e.printStackTrace();
+        }
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_LEGACY_STATE);
+    }
+
+    private static ContentValues sessionValues(long botId, long chatId, Session s) {
+        ContentValues v = new ContentValues();
+        v.put("bot_id", botId);
+        v.put("chat_id", chatId);
+        v.put("step", s.step);
+        v.put("photo", s.photo);
+        v.put("photo_uid", s.photoUid);
+        v.put("vision_photo", s.visionPhoto);
+        v.put("vision_mime", s.visionMime);
+        v.put("vision_bytes", s.visionBytes);
+        v.put("name", s.name);
+        v.put("link", s.link);
+        v.put("descr", s.desc);
+        v.put("post_key", s.postKey);
+        v.put("created_at", s.createdAt);
+        v.put("updated_at", s.updatedAt);
+        return v;
+    }
+
+    private static void createCaptionCache(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_CAPTIONS + " (" +
+                "cache_key TEXT PRIMARY KEY, " +
+                "caption TEXT NOT NULL, " +
+                "created_at INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_caption_created ON " + TABLE_CAPTIONS + " (created_at)");
+    }
+
+    private static void createOutbox(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_OUTBOX + " (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "bot_id INTEGER NOT NULL DEFAULT 0, " +
+                "idem_key TEXT NOT NULL UNIQUE, " +
+                "chat TEXT NOT NULL, " +
+                "photo TEXT, caption TEXT, link TEXT, " +
+                "admin_id INTEGER NOT NULL DEFAULT 0, " +
+                "state INTEGER NOT NULL DEFAULT 0, " +
+                "attempts INTEGER NOT NULL DEFAULT 0, " +
+                "due_at INTEGER NOT NULL, " +
+                "next_attempt_at INTEGER NOT NULL, " +
+                "last_error TEXT)");
+    }
+
+    // The scheduler only ever asks "what is the earliest pending row", so index exactly that.
+    private static void createOutboxIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_outbox_due ON " + TABLE_OUTBOX + " (state, next_attempt_at)");
+    }
+
+    // update_offsets is the highest update_id each bot has taken from Telegram; update_journal holds
+    // the ones whose handler has not committed yet. Together they survive a kill mid-batch.
+    private static void createJournal(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_OFFSETS + " (" +
+                "bot_id INTEGER PRIMARY KEY, " +
+                "last_update_id INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_JOURNAL + " (" +
+                "bot_id INTEGER NOT NULL, " +
+                "update_id INTEGER NOT NULL, " +
+                "payload TEXT NOT NULL, " +
+                "PRIMARY KEY (bot_id, update_id))");
+    }
+
+    private static long micros(long startedNanos) {
+        return (System.nanoTime() - startedNanos) / 1000;
+    }
+
+    private synchronized SQLiteDatabase conn() {
+        if (conn == null) {
+            conn = getWritableDatabase();
+            upsertSession = conn.compileStatement("INSERT OR REPLACE INTO " + TABLE_SESSIONS +
+                    " (" + SESSION_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            insertJournal = conn.compileStatement("INSERT OR IGNORE INTO " + TABLE_JOURNAL +
+                    " (bot_id, update_id, payload) VALUES (?, ?, ?)");
+            deleteJournal = conn.compileStatement("DELETE FROM " + TABLE_JOURNAL + " WHERE bot_id = ? AND update_id = ?");
+        }
+        return conn;
     }
 
     // --- METHODS ---
 
-    public void saveState(long chatId, int step, Map<String, String> data) {
+    // One transaction for a whole write-behind batch from SessionCache: the dirty sessions and the
+    // journal rows of updates whose handlers finished (processed: bot id -> update ids), so an update
+    // is never marked done without the session state it produced.
+    public boolean saveStates(Map<SessionCache.Key, Session> sessions, Map<Long, List<Long>> processed) {
+        long started = System.nanoTime();
         try {
-            SQLiteDatabase db = this.getWritableDatabase();
-            ContentValues values = new ContentValues();
-            values.put(COL_CHAT_ID, chatId);
-            values.put(COL_STEP, step);
-            values.put(COL_DATA, new Gson().toJson(data));
+            SQLiteDatabase db = conn();
+            synchronized (upsertSession) {
+                db.beginTransactionNonExclusive();
+                try {
+                    for (Map.Entry<SessionCache.Key, Session> e : sessions.entrySet()) {
+                        bindSession(e.getKey().bot, e.getKey().chat, e.getValue());
+                        upsertSession.executeInsert();
+                    }
+                    for (Map.Entry<Long, List<Long>> e : processed.entrySet()) {
+                        for (long updateId : e.getValue()) {
+                            deleteJournal.bindLong(1, e.getKey());
+                            deleteJournal.bindLong(2, updateId);
+                            deleteJournal.executeUpdateDelete();
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            SAVE_STATES.record(micros(started));
+        }
+    }
 
-            db.insertWithOnConflict(TABLE_STATE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
-            db.close();
-        } catch (Exception e) { e.printStackTrace(); }
+    private void bindSession(long botId, long chatId, Session s) {
+        upsertSession.clearBindings();
+        upsertSession.bindLong(1, botId);
+        upsertSession.bindLong(2, chatId);
+        upsertSession.bindLong(3, s.step);
+        bindText(4, s.photo);
+        bindText(5, s.photoUid);
+        bindText(6, s.visionPhoto);
+        bindText(7, s.visionMime);
+        upsertSession.bindLong(8, s.visionBytes);
+        bindText(9, s.name);
+        bindText(10, s.link);
+        bindText(11, s.desc);
+        bindText(12, s.postKey);
+        upsertSession.bindLong(13, s.createdAt);
+        upsertSession.bindLong(14, s.updatedAt);
+    }
+
+    private void bindText(int index, String value) {
+        if (value == null) upsertSession.bindNull(index);
+        else upsertSession.bindString(index, value);
+    }
+
+    // SQLiteStatement can only return a single column, so this goes through rawQuery,
+    // whose compiled form is reused from the connection's statement cache.
+    public Session getSession(long botId, long chatId) {
+        long started = System.nanoTime();
+        try (Cursor c = conn().rawQuery("SELECT " + SESSION_COLUMNS + " FROM " + TABLE_SESSIONS +
+                " WHERE bot_id = ? AND chat_id = ?", new String[]{String.valueOf(botId), String.valueOf(chatId)})) {
+            if (c.moveToFirst()) {
+                Session s = new Session();
+                s.step = c.getInt(2);
+                s.photo = c.getString(3);
+                s.photoUid = c.getString(4);
+                s.visionPhoto = c.getString(5);
+                s.visionMime = c.getString(6);
+                s.visionBytes = c.getLong(7);
+                s.name = c.getString(8);
+                s.link = c.getString(9);
+                s.desc = c.getString(10);
+                s.postKey = c.getString(11);
+                s.createdAt = c.getLong(12);
+                s.updatedAt = c.getLong(13);
+                return s;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            GET_SESSION.record(micros(started));
+        }
+        return new Session();
     }
 
-    public int getStep(long chatId) {
-        int step = 0;
+    // --- UPDATE JOURNAL ---
+
+    // Journals a batch before it is dispatched and moves the bot's offset past it, in one
+    // transaction. Only after this returns true may Telegram be asked for offset + 1.
+    public boolean journalUpdates(long botId, List<Update> updates, long lastUpdateId) {
+        long started = System.nanoTime();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            Cursor cursor = db.query(TABLE_STATE, new String[]{COL_STEP}, COL_CHAT_ID + "=?", new String[]{String.valueOf(chatId)}, null, null, null);
-            if (cursor.moveToFirst()) step = cursor.getInt(0);
-            cursor.close();
-            db.close();
+            SQLiteDatabase db = conn();
+            synchronized (upsertSession) {
+                db.beginTransactionNonExclusive();
+                try {
+                    for (Update update : updates) {
+                        insertJournal.bindLong(1, botId);
+                        insertJournal.bindLong(2, update.updateId);
+                        insertJournal.bindString(3, gson.toJson(update));
+                        insertJournal.executeInsert();
+                    }
+                    db.execSQL("INSERT OR REPLACE INTO " + TABLE_OFFSETS + " (bot_id, last_update_id) VALUES (?, ?)",
+                            new Object[]{botId, lastUpdateId});
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            JOURNAL.record(micros(started));
+        }
+    }
+
+    public long getUpdateOffset(long botId) {
+        try (Cursor c = conn().rawQuery("SELECT last_update_id FROM " + TABLE_OFFSETS + " WHERE bot_id = ?",
+                new String[]{String.valueOf(botId)})) {
+            if (c.moveToFirst()) return c.getLong(0);
         } catch (Exception e) { e.printStackTrace(); }
-        return step;
+        return 0;
+    }
+
+    // Updates taken from Telegram whose handlers never committed (the process died), oldest first.
+    public List<Update> pendingUpdates(long botId) {
+        List<Update> pending = new ArrayList<>();
+        try (Cursor c = conn().rawQuery("SELECT payload FROM " + TABLE_JOURNAL + " WHERE bot_id = ? ORDER BY update_id",
+                new String[]{String.valueOf(botId)})) {
+            while (c.moveToNext()) pending.add(gson.fromJson(c.getString(0), Update.class));
+        } catch (Exception e) { e.printStackTrace(); }
+        return pending;
+    }
+
+    // --- CAPTION CACHE ---
+
+    public CaptionCache.Entry getCachedCaption(String key, long minCreatedAt) {
+        long started = System.nanoTime();
+        try (Cursor cursor = conn().rawQuery("SELECT caption, created_at FROM " + TABLE_CAPTIONS +
+                " WHERE cache_key = ? AND created_at >= ?", new String[]{key, String.valueOf(minCreatedAt)})) {
+            if (cursor.moveToFirst()) return new CaptionCache.Entry(cursor.getString(0), cursor.getLong(1));
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            GET_CAPTION.record(micros(started));
+        }
+        return null;
+    }
+
+    // Insert, then drop expired rows and anything beyond the newest maxRows.
+    public void putCachedCaption(String key, CaptionCache.Entry entry, long ttlMs, int maxRows) {
+        long started = System.nanoTime();
+        try {
+            SQLiteDatabase db = conn();
+            db.beginTransactionNonExclusive();
+            try {
+                db.execSQL("INSERT OR REPLACE INTO " + TABLE_CAPTIONS + " (cache_key, caption, created_at) VALUES (?, ?, ?)",
+                        new Object[]{key, entry.caption, entry.createdAt});
+                db.execSQL("DELETE FROM " + TABLE_CAPTIONS + " WHERE created_at < ?", new Object[]{entry.createdAt - ttlMs});
+                db.execSQL("DELETE FROM " + TABLE_CAPTIONS + " WHERE cache_key NOT IN (SELECT cache_key FROM " +
+                        TABLE_CAPTIONS + " ORDER BY created_at DESC LIMIT " + maxRows + ")");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            PUT_CAPTION.record(micros(started));
+        }
+    }
+
+    // --- OUTBOX ---
+
+    // Returns false when a post with the same idempotency key is already queued (or was sent).
+    public boolean enqueueOutbox(OutboxItem item) {
+        long started = System.nanoTime();
+        try {
+            ContentValues values = new ContentValues();
+            values.put("bot_id", item.botId);
+            values.put("idem_key", item.idemKey);
+            values.put("chat", item.chat);
+            values.put("photo", item.photo);
+            values.put("caption", item.caption);
+            values.put("link", item.link);
+            values.put("admin_id", item.adminId);
+            values.put("state", OutboxItem.PENDING);
+            values.put("due_at", item.dueAt);
+            values.put("next_attempt_at", item.nextAttemptAt);
+            item.id = conn().insertWithOnConflict(TABLE_OUTBOX, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            return item.id != -1;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            ENQUEUE_OUTBOX.record(micros(started));
+        }
     }
 
-    public Map<String, String> getData(long chatId) {
-        Map<String, String> data = new HashMap<>();
+    // Moves up to `limit` of one bot's rows due by `dueBy` to IN_FLIGHT and returns them, atomically.
+    public synchronized List<OutboxItem> claimDueOutbox(long botId, long dueBy, int limit) {
+        long started = System.nanoTime();
+        List<OutboxItem> claimed = new ArrayList<>();
+        SQLiteDatabase db = conn();
+        db.beginTransactionNonExclusive();
         try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            Cursor cursor = db.query(TABLE_STATE, new String[]{COL_DATA}, COL_CHAT_ID + "=?", new String[]{String.valueOf(chatId)}, null, null, null);
-            if (cursor.moveToFirst()) {
-                String json = cursor.getString(0);
-                data = new Gson().fromJson(json, new TypeToken<Map<String, String>>(){}.getType());
+            try (Cursor c = db.rawQuery("SELECT id, idem_key, chat, photo, caption, link, admin_id, attempts, due_at, next_attempt_at FROM " +
+                    TABLE_OUTBOX + " WHERE state = " + OutboxItem.PENDING + " AND bot_id = ? AND next_attempt_at <= ? ORDER BY next_attempt_at LIMIT " + limit,
+                    new String[]{String.valueOf(botId), String.valueOf(dueBy)})) {
+                while (c.moveToNext()) {
+                    OutboxItem item = new OutboxItem();
+                    item.id = c.getLong(0);
+                    item.botId = botId;
+                    item.idemKey = c.getString(1);
+                    item.chat = c.getString(2);
+                    item.photo = c.getString(3);
+                    item.caption = c.getString(4);
+                    item.link = c.getString(5);
+                    item.adminId = c.getLong(6);
+                    item.attempts = c.getInt(7);
+                    item.dueAt = c.getLong(8);
+                    item.nextAttemptAt = c.getLong(9);
+                    item.state = OutboxItem.IN_FLIGHT;
+                    claimed.add(item);
+                }
             }
-            cursor.close();
-            db.close();
+            for (OutboxItem item : claimed) {
+                db.execSQL("UPDATE " + TABLE_OUTBOX + " SET state = ? WHERE id = ?", new Object[]{OutboxItem.IN_FLIGHT, item.id});
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            e.printStackTrace();
+            claimed.clear();
+        } finally {
+            db.endTransaction();
+            CLAIM_OUTBOX.record(micros(started));
+        }
+        return claimed;
+    }
+
+    public void finishOutbox(OutboxItem item, int state, long nextAttemptAt, String error) {
+        long started = System.nanoTime();
+        try {
+            conn().execSQL("UPDATE " + TABLE_OUTBOX + " SET state = ?, attempts = ?, next_attempt_at = ?, last_error = ? WHERE id = ?",
+                    new Object[]{state, item.attempts, nextAttemptAt, error, item.id});
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            FINISH_OUTBOX.record(micros(started));
+        }
+    }
+
+    // Hands a failed drain's batch back to PENDING, due no sooner than retryAt. Rows the drain had
+    // already finished are no longer IN_FLIGHT and keep their verdict.
+    public void releaseOutbox(List<OutboxItem> items, long retryAt) {
+        try {
+            for (OutboxItem item : items) {
+                conn().execSQL("UPDATE " + TABLE_OUTBOX + " SET state = ?, next_attempt_at = MAX(next_attempt_at, ?) WHERE id = ? AND state = ?",
+                        new Object[]{OutboxItem.PENDING, retryAt, item.id, OutboxItem.IN_FLIGHT});
+            }
+        } catch (Exception e) { e.printStackTrace(); }
+    }
+
+    // After a process death nothing can still be in flight: hand those rows back to the drain.
+    public void recoverOutbox() {
+        try {
+            conn().execSQL("UPDATE " + TABLE_OUTBOX + " SET state = ? WHERE state = ?",
+                    new Object[]{OutboxItem.PENDING, OutboxItem.IN_FLIGHT});
+        } catch (Exception e) { e.printStackTrace(); }
+    }
+
+    // Earliest next_attempt_at among pending rows (of any bot), or 0 when nothing is waiting.
+    public long nextOutboxAttemptAt() {
+        return queryNextAttempt("", null);
+    }
+
+    public long nextOutboxAttemptAt(long botId) {
+        return queryNextAttempt(" AND bot_id = ?", new String[]{String.valueOf(botId)});
+    }
+
+    private long queryNextAttempt(String filter, String[] args) {
+        try (Cursor c = conn().rawQuery("SELECT MIN(next_attempt_at) FROM " + TABLE_OUTBOX +
+                " WHERE state = " + OutboxItem.PENDING + filter, args)) {
+            if (c.moveToFirst() && !c.isNull(0)) return c.getLong(0);
         } catch (Exception e) { e.printStackTrace(); }
-        return data;
+        return 0;
     }
 }
@@ -0,0 +1,278 @@
+package com.mmchbot;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.gson.JsonParser;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.RequestBody;
+
+// Bulk publishing for release days: many posters collected in one go (album photos captioned
+// "Name | link", or CSV rows), captioned on the shared io pool with at most GEMINI_CONCURRENCY
+// Gemini calls at a time across every job of every bot, and queued on the outbox as each caption
+// lands. The outbox/TelegramSender pace delivery at the channel limit. One status message is
+// edited with per-item progress and posts/minute.
+public class BulkJob implements OutboxWorker.Listener {
+
+    public static final int GEMINI_CONCURRENCY = 3;
+    private static final long PROGRESS_INTERVAL_MS = 5000;
+    private static final int MAX_PROGRESS_CHARS = 3800;
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    // Process-wide captioning slots; jobs waiting for one take turns, one item at a time.
+    private static final Semaphore SLOTS = new Semaphore(GEMINI_CONCURRENCY);
+    private static final ArrayDeque<BulkJob> WAITING = new ArrayDeque<>();
+    // Every item gets its own io lane so items run in parallel; chat ids never get this low.
+    private static final AtomicLong LANES = new AtomicLong(Long.MIN_VALUE);
+    // One thread edits the status message of every running job.
+    private static final ScheduledExecutorService PROGRESS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "bulk-progress");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public interface Captioner {
+        // Returns the caption, or null when the poster could not be downloaded.
+        String caption(Item item) throws Exception;
+    }
+
+    public static class Item {
+        static final int WAITING = 0, CAPTIONING = 1, QUEUED = 2, POSTED = 3, FAILED = 4;
+
+        public String photo;
+        public String photoUid;
+        public String visionPhoto;
+        public String visionMime = "image/jpeg";
+        public long visionBytes;
+        public String name;
+        public String link;
+        volatile int status = WAITING;
+        volatile String error;
+    }
+
+    private final String id = Long.toString(System.currentTimeMillis(), 36) + "-" + IDS.incrementAndGet();
+    private final long adminId;
+    private final String channel;
+    private final String token;
+    private final TelegramSender sender;
+    private final OutboxWorker outbox;
+    private final KeyedDispatcher io;
+    private final List<Item> items = new ArrayList<>();
+    private Captioner captioner;
+    private int nextItem;
+    private ScheduledFuture<?> progressTask;
+    private volatile Long progressMessageId;
+    private String published;
+    private long startedAt;
+    private volatile long lastPostedAt;
+    private final AtomicInteger done = new AtomicInteger();
+
+    public BulkJob(long adminId, String channel, String token, TelegramSender sender, OutboxWorker outbox, KeyedDispatcher io) {
+        this.adminId = adminId;
+        this.channel = channel;
+        this.token = token;
+        this.sender = sender;
+        this.outbox = outbox;
+        this.io = io;
+    }
+
+    public synchronized void add(Item item) {
+        items.add(item);
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    public void start(Captioner captioner) {
+        synchronized (this) {
+            this.captioner = captioner;
+            startedAt = SystemClock.elapsedRealtime();
+            lastPostedAt = startedAt;
+            outbox.addListener(this);
+
+            published = render();
+            sender.send("sendMessage", String.valueOf(adminId), TelegramSender.Priority.CHAT, message(published))
+                .thenAccept(response -> progressMessageId = messageId(response));
+            progressTask = PROGRESS.scheduleWithFixedDelay(this::publishProgress, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        synchronized (BulkJob.class) {
+            WAITING.add(this);
+        }
+        pump();
+    }
+
+    // Hands free slots to waiting jobs, round robin. A slot is released (and this called again) when
+    // its caption finishes, so no io thread ever waits for one.
+    private static void pump() {
+        while (true) {
+            BulkJob job;
+            int index;
+            synchronized (BulkJob.class) {
+                job = WAITING.poll();
+                if (job == null) return;
+                if (!SLOTS.tryAcquire()) {
+                    WAITING.addFirst(job);
+                    return;
+                }
+                index = job.claim();
+                if (index < 0) {
+                    SLOTS.release();
+                    continue;
+                }
+                if (index + 1 < job.size()) WAITING.add(job);
+            }
+            job.submit(index);
+        }
+    }
+
+    private synchronized int claim() {
+        return nextItem < items.size() ? nextItem++ : -1;
+    }
+
+    private void submit(int index) {
+        Item item;
+        synchronized (this) {
+            item = items.get(index);
+        }
+        io.execute(LANES.getAndIncrement(), () -> {
+            try {
+                caption(index, item);
+            } finally {
+                SLOTS.release();
+                pump();
+            }
+        });
+    }
+
+    private void caption(int index, Item item) {
+        item.status = Item.CAPTIONING;
+        try {
+            String caption = captioner.caption(item);
+            if (caption == null) {
+                fail(item, "image download failed");
+                return;
+            }
+            OutboxItem post = new OutboxItem(BotConfig.botId(token), "bulk:" + id + ":" + index, channel, item.photo, caption, item.link,
+                0, System.currentTimeMillis());
+            if (!outbox.enqueue(post)) {
+                fail(item, "already queued");
+                return;
+            }
+            item.status = Item.QUEUED;
+            outbox.drain(token);
+        } catch (Exception e) {
+            Log.w("BulkJob", "Caption failed for " + item.name + ": " + e.getMessage());
+            fail(item, e.getMessage());
+        }
+    }
+
+    @Override
+    public void onOutboxFinished(OutboxItem post, boolean sent) {
+        String prefix = "bulk:" + id + ":";
+        if (!post.idemKey.startsWith(prefix)) return;
+        Item item;
+        synchronized (this) {
+            item = items.get(Integer.parseInt(post.idemKey.substring(prefix.length())));
+        }
+        if (sent) {
+            item.status = Item.POSTED;
+            lastPostedAt = SystemClock.elapsedRealtime();
+            finishOne();
+        } else {
+            fail(item, "Telegram rejected the post");
+        }
+    }
+
+    private void fail(Item item, String error) {
+        item.error = error;
+        item.status = Item.FAILED;
+        finishOne();
+    }
+
+    private void finishOne() {
+        if (done.incrementAndGet() < size()) return;
+        outbox.removeListener(this);
+        progressTask.cancel(false);
+        PROGRESS.execute(this::publishProgress);
+        Metrics.histogram("bulk.posts_per_min").record(postsPerMinute());
+    }
+
+    // Only on the PROGRESS thread. Telegram rejects an edit to the same text, so those are skipped.
+    private void publishProgress() {
+        Long messageId = progressMessageId;
+        if (messageId == null) return;
+        String text = render();
+        if (text.equals(published)) return;
+        published = text;
+        sender.send("editMessageText", String.valueOf(adminId), TelegramSender.Priority.CHAT,
+            TelegramBodies.editMessage(adminId, messageId, text));
+    }
+
+    // Measured up to the latest post, so the figure (and the status text) only moves when one lands.
+    private long postsPerMinute() {
+        int posted = 0;
+        synchronized (this) {
+            for (Item item : items) if (item.status == Item.POSTED) posted++;
+        }
+        return posted * 60_000L / Math.max(1, lastPostedAt - startedAt);
+    }
+
+    private synchronized String render() {
+        int[] counts = new int[5];
+        StringBuilder list = new StringBuilder();
+        StringBuilder line = new StringBuilder();
+        int hidden = 0;
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            counts[item.status]++;
+            // Whole lines only: a cut inside "&amp;" or a tag makes Telegram reject the edit.
+            line.setLength(0);
+            line.append('\n').append(icon(item.status)).append(' ').append(i + 1).append(". ").append(escape(item.name));
+            if (item.status == Item.FAILED && item.error != null) line.append(" — ").append(escape(item.error));
+            if (hidden > 0 || list.length() + line.length() > MAX_PROGRESS_CHARS) hidden++;
+            else list.append(line);
+        }
+        if (hidden > 0) list.append("\n… ").append(hidden).append(" more");
+        return "📦 <b>Bulk publish</b> " + (counts[Item.POSTED] + counts[Item.FAILED]) + "/" + items.size() +
+            "\n✅ " + counts[Item.POSTED] + " posted · 📤 " + counts[Item.QUEUED] + " queued · 🧠 " +
+            counts[Item.CAPTIONING] + " captioning · ❌ " + counts[Item.FAILED] + " failed" +
+            "\n⚡ " + postsPerMinute() + " posts/min\n" + list;
+    }
+
+    private static String icon(int status) {
+        switch (status) {
+            case Item.CAPTIONING: return "🧠";
+            case Item.QUEUED: return "📤";
+            case Item.POSTED: return "✅";
+            case Item.FAILED: return "❌";
+            default: return "⏳";
+        }
+    }
+
+    private static String escape(String s) {
+        return s == null ? "" : s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private RequestBody message(String text) {
+        return TelegramBodies.message(adminId, text);
+    }
+
+    private static Long messageId(String response) {
+        if (response == null) return null;
+        try {
+            return JsonParser.parseString(response).getAsJsonObject()
+                .getAsJsonObject("result").get("message_id").getAsLong();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.mmchbot;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Gemini captions keyed by what produced them: poster, movie name, prompt and model.
+// A small in-memory LRU sits in front of the caption_cache table (TTL + row-count bound).
+public class CaptionCache {
+
+    private static final int MEMORY_ENTRIES = 64;
+    private static final long TTL_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final int MAX_ROWS = 500;
+
+    private final BotDatabase db;
+    private final LongAdder hits = Metrics.counter("caption_cache.hit");
+    private final LongAdder misses = Metrics.counter("caption_cache.miss");
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(MEMORY_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+
+    public CaptionCache(BotDatabase db) {
+        this.db = db;
+    }
+
+    // photoUid is Telegram's file_unique_id, which (unlike file_id) is stable across bots and sends.
+    public static String key(String photoUid, String name, String prompt, String model) {
+        if (photoUid == null || name == null) return null;
+        String normalized = name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[]{photoUid, normalized, prompt, model}) {
+                sha.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                sha.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : sha.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    public String get(String key) {
+        if (key == null) return null;
+        long now = System.currentTimeMillis();
+        synchronized (memory) {
+            Entry e = memory.get(key);
+            if (e != null && now - e.createdAt < TTL_MS) {
+                hits.increment();
+                return e.caption;
+            }
+        }
+        Entry stored = db.getCachedCaption(key, now - TTL_MS);
+        if (stored == null) {
+            misses.increment();
+            return null;
+        }
+        synchronized (memory) { memory.put(key, stored); }
+        hits.increment();
+        return stored.caption;
+    }
+
+    public void put(String key, String caption) {
+        if (key == null || caption == null) return;
+        Entry e = new Entry(caption, System.currentTimeMillis());
+        synchronized (memory) { memory.put(key, e); }
+        db.putCachedCaption(key, e, TTL_MS, MAX_ROWS);
+    }
+
+    public static final class Entry {
+        public final String caption;
+        public final long createdAt;
+
+        public Entry(String caption, long createdAt) {
+            this.caption = caption;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.mmchbot;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.FileObserver;
+import android.util.Log;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Process-wide snapshot of settings.json. It is parsed once and kept as an immutable list of
+// BotConfigs that BotService, AlarmReceiver and BotDatabase all read; a new snapshot is swapped in
+// when the file is rewritten (FileObserver) or on an explicit reload (BotService.ACTION_RELOAD_CONFIG).
+public final class ConfigStore {
+
+    public interface Listener {
+        void onConfigChanged(List<BotConfig> bots);
+    }
+
+    private static ConfigStore instance;
+
+    private final File file;
+    private final AtomicReference<List<BotConfig>> current = new AtomicReference<>(Collections.emptyList());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final FileObserver observer;
+    // Raw text of the loaded snapshot; editors fire several events per save, only real changes count.
+    private String loadedText;
+
+    public static synchronized ConfigStore get(Context context) {
+        if (instance == null) instance = new ConfigStore(context.getApplicationContext().getFilesDir());
+        return instance;
+    }
+
+    // Tests only: Robolectric gives every test a new files directory.
+    static synchronized void reset() {
+        if (instance != null) instance.observer.stopWatching();
+        instance = null;
+    }
+
+    private ConfigStore(File filesDir) {
+        this.file = new File(filesDir, BotConfig.SETTINGS_FILE);
+        reload();
+        // Watches the directory, not the file, so a save that replaces settings.json is seen too.
+        int mask = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+        observer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? new FileObserver(filesDir, mask) {
+            @Override
+            public void onEvent(int event, String path) {
+                onSettingsEvent(path);
+            }
+        } : legacyObserver(filesDir, mask);
+        observer.startWatching();
+    }
+
+    // FileObserver(File, int) is API 29+; the path constructor it replaced is all older releases have.
+    @SuppressWarnings("deprecation")
+    private FileObserver legacyObserver(File dir, int mask) {
+        return new FileObserver(dir.getPath(), mask) {
+            @Override
+            public void onEvent(int event, String path) {
+                onSettingsEvent(path);
+            }
+        };
+    }
+
+    private void onSettingsEvent(String path) {
+        if (BotConfig.SETTINGS_FILE.equals(path)) reload();
+    }
+
+    // Every configured bot, primary first. Never null; empty when nothing usable is configured.
+    public List<BotConfig> current() {
+        return current.get();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Re-reads settings.json. A file that doesn't parse keeps the previous snapshot, so a bad edit
+    // can't take running bots down. Returns false in that case. Listeners are told in order, under
+    // the lock, and must only hand the new snapshot off (BotService posts it to its main thread).
+    public synchronized boolean reload() {
+        List<BotConfig> bots;
+        try {
+            String text = file.exists() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : "";
+            if (text.equals(loadedText)) return true;
+            bots = text.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(BotConfig.parse(new StringReader(text)));
+            loadedText = text;
+        } catch (Exception e) {
+            Log.w("ConfigStore", "Keeping previous settings: " + e.getMessage());
+            return false;
+        }
+        current.set(bots);
+        Metrics.counter("config.reloads").increment();
+        for (Listener listener : listeners) listener.onConfigChanged(bots);
+        return true;
+    }
+}
@@ -0,0 +1,236 @@
+package com.mmchbot;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.ByteString;
+
+// Hedged caption requests over an ordered list of models (primary first). A backup model is
+// started when the primary hasn't produced any text by its own p95 time-to-first-text, or right
+// away when a model answers 429/5xx or drops the connection. The first complete caption wins
+// and every other call is cancelled. Per-model latency lands in gemini.<model>.* histograms.
+public class GeminiClient {
+
+    private static final long DEFAULT_HEDGE_MS = 8000;
+    private static final long MIN_HEDGE_MS = 2000;
+    private static final long MAX_HEDGE_MS = 30000;
+    private static final long MIN_SAMPLES = 20;
+
+    private static final LongAdder HEDGED = Metrics.counter("gemini.hedged");
+    private static final LongAdder CANCELLED = Metrics.counter("gemini.cancelled");
+    private static final LongAdder FALLBACK = Metrics.counter("gemini.fallback");
+
+    private final OkHttpClient client;
+    private final String baseUrl;
+    private final String apiKey;
+    private final List<String> models;
+    // Per-model metric handles, resolved once here rather than by name on every attempt.
+    private final Map<String, ModelMetrics> metrics = new HashMap<>();
+
+    // baseUrl is "https://generativelanguage.googleapis.com/v1beta/models" (or a local stand-in).
+    public GeminiClient(OkHttpClient client, String baseUrl, String apiKey, List<String> models) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+        this.apiKey = apiKey;
+        this.models = new ArrayList<>(models);
+        for (String model : this.models) metrics.put(model, new ModelMetrics(model));
+    }
+
+    private static final class ModelMetrics {
+        final Metrics.Histogram firstText;
+        final Metrics.Histogram total;
+        final Metrics.Histogram promptTokens;
+        final Metrics.Histogram outputTokens;
+        final LongAdder errors;
+
+        ModelMetrics(String model) {
+            String prefix = "gemini." + model + ".";
+            firstText = Metrics.histogram(prefix + "first_text_ms");
+            total = Metrics.histogram(prefix + "total_ms");
+            promptTokens = Metrics.histogram(prefix + "prompt_tokens");
+            outputTokens = Metrics.histogram(prefix + "output_tokens");
+            errors = Metrics.counter(prefix + "errors");
+        }
+    }
+
+    // The winning caption and the model that wrote it (the primary, a hedge or a fallback).
+    public static final class Caption {
+        public final String text;
+        public final String model;
+
+        Caption(String text, String model) {
+            this.text = text;
+            this.model = model;
+        }
+    }
+
+    // Blocks until one model returns a caption. The image is held as bytes so each attempt can
+    // replay it; listener only ever sees the text of the attempt that started streaming first.
+    public Caption generate(String prompt, String mimeType, ByteString image, GeminiStream.Listener listener) throws IOException {
+        return generate(prompt, mimeType, image, listener, null);
+    }
+
+    // Completing `cancel` aborts the race: every call is cancelled and this throws.
+    public Caption generate(String prompt, String mimeType, ByteString image, GeminiStream.Listener listener,
+                            CompletableFuture<?> cancel) throws IOException {
+        Race race = new Race(prompt, mimeType, image, listener);
+        if (cancel != null) cancel.whenComplete((ignored, error) -> race.abort());
+        race.launchNext();
+        try {
+            try {
+                return race.winner.get(hedgeDelayMs(metrics.get(models.get(0)).firstText), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (race.hedge()) HEDGED.increment();
+                return race.winner.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } finally {
+            race.cancelAll();
+        }
+    }
+
+    // p95 of the primary's time to first text, once there are enough samples to trust it.
+    private static long hedgeDelayMs(Metrics.Histogram h) {
+        if (h.count() < MIN_SAMPLES) return DEFAULT_HEDGE_MS;
+        return Math.max(MIN_HEDGE_MS, Math.min(MAX_HEDGE_MS, h.percentile(95)));
+    }
+
+    private final class Race {
+        final String prompt;
+        final String mimeType;
+        final ByteString image;
+        final GeminiStream.Listener listener;
+        final CompletableFuture<Caption> winner = new CompletableFuture<>();
+        final List<Call> calls = new ArrayList<>();
+        int next = 0;
+        int active = 0;
+        Call leader;
+        IOException lastError;
+
+        Race(String prompt, String mimeType, ByteString image, GeminiStream.Listener listener) {
+            this.prompt = prompt;
+            this.mimeType = mimeType;
+            this.image = image;
+            this.listener = listener;
+        }
+
+        // Only hedge while nothing is streaming yet; a model that is already talking is not slow.
+        synchronized boolean hedge() {
+            return leader == null && launchNext();
+        }
+
+        synchronized boolean launchNext() {
+            if (winner.isDone() || next >= models.size()) return false;
+            String model = models.get(next++);
+            Request request = new Request.Builder()
+                    .url(baseUrl + "/" + model + ":streamGenerateContent?alt=sse&key=" + apiKey)
+                    .post(new GeminiRequestBody(prompt, mimeType, new Buffer().write(image)))
+                    .build();
+            Call call = client.newCall(request);
+            calls.add(call);
+            active++;
+            call.enqueue(new Attempt(model));
+            return true;
+        }
+
+        synchronized void cancelAll() {
+            for (Call call : calls) call.cancel();
+        }
+
+        synchronized void abort() {
+            if (winner.completeExceptionally(new IOException("Cancelled"))) {
+                CANCELLED.increment();
+                cancelAll();
+            }
+        }
+
+        synchronized boolean isLeader(Call call) {
+            if (leader == null) leader = call;
+            return leader == call;
+        }
+
+        synchronized void succeeded(String model, String text) {
+            if (winner.complete(new Caption(text, model))) cancelAll();
+        }
+
+        synchronized void failed(Call call, String model, IOException error, boolean fallback) {
+            active--;
+            if (leader == call) leader = null;
+            if (winner.isDone() || call.isCanceled()) return;
+            metrics.get(model).errors.increment();
+            Log.w("GeminiClient", model + " failed: " + error.getMessage());
+            lastError = error;
+            if (fallback && launchNext()) {
+                FALLBACK.increment();
+            } else if (active == 0) {
+                winner.completeExceptionally(lastError);
+            }
+        }
+
+        private final class Attempt implements Callback {
+            final String model;
+            final ModelMetrics stats;
+            final long started = SystemClock.elapsedRealtime();
+            final GeminiStream.Usage usage = new GeminiStream.Usage();
+            boolean firstText = true;
+
+            Attempt(String model) {
+                this.model = model;
+                this.stats = metrics.get(model);
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                failed(call, model, e, true);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response res = response) {
+                    int code = res.code();
+                    if (!res.isSuccessful()) {
+                        failed(call, model, new IOException("Gemini API " + code + " " + res.message()), code == 429 || code >= 500);
+                        return;
+                    }
+                    String text = GeminiStream.read(res.body().source(), soFar -> {
+                        if (firstText) {
+                            firstText = false;
+                            stats.firstText.record(SystemClock.elapsedRealtime() - started);
+                        }
+                        if (listener != null && isLeader(call)) listener.onText(soFar);
+                    }, usage);
+                    stats.total.record(SystemClock.elapsedRealtime() - started);
+                    stats.promptTokens.record(usage.promptTokens);
+                    stats.outputTokens.record(usage.outputTokens);
+                    succeeded(model, text);
+                } catch (IOException e) {
+                    // Cut off mid-stream or an empty/blocked answer: let the next model try.
+                    failed(call, model, e, true);
+                } catch (Exception e) {
+                    failed(call, model, new IOException(e.getMessage(), e), false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.mmchbot;
+
+import com.google.gson.JsonPrimitive;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+// generateContent request whose image is Base64-encoded on the fly while the body is written:
+// the JSON envelope goes out around it and nothing larger than one copy buffer is held in heap.
+public class GeminiRequestBody extends RequestBody {
+
+    private static final MediaType JSON = MediaType.get("application/json");
+
+    private final String prompt;
+    private final String mimeType;
+    private final BufferedSource image;
+
+    public GeminiRequestBody(String prompt, String mimeType, BufferedSource image) {
+        this.prompt = prompt;
+        this.mimeType = mimeType;
+        this.image = image;
+    }
+
+    @Override
+    public MediaType contentType() { return JSON; }
+
+    // The image source can only be consumed once, so OkHttp must not replay this body.
+    @Override
+    public boolean isOneShot() { return true; }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.writeUtf8("{\"contents\":[{\"parts\":[{\"text\":");
+        sink.writeUtf8(new JsonPrimitive(prompt).toString());
+        sink.writeUtf8("},{\"inline_data\":{\"mime_type\":\"").writeUtf8(mimeType).writeUtf8("\",\"data\":\"");
+
+        // Closing the encoder emits the final padding; the wrapper keeps it from closing the sink.
+        // FilterOutputStream would otherwise push every encoded chunk through write(int) byte by byte.
+        try (OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(sink.outputStream()) {
+            @Override public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+            @Override public void close() throws IOException { flush(); }
+        })) {
+            InputStream in = image.inputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) base64.write(buffer, 0, read);
+        }
+
+        sink.writeUtf8("\"}}]}]}");
+    }
+}
@@ -0,0 +1,77 @@
+package com.mmchbot;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import okio.BufferedSource;
+
+// Incremental reader for :streamGenerateContent?alt=sse. Each server-sent event carries one
+// small GenerateContentResponse; only its text parts are kept, so memory stays proportional
+// to the caption rather than to the raw response.
+public final class GeminiStream {
+
+    public interface Listener {
+        // Called after every chunk that added text; soFar is the caption accumulated up to now.
+        void onText(CharSequence soFar);
+    }
+
+    // Token counts from usageMetadata; Gemini repeats it on every chunk, the last one is final.
+    public static final class Usage {
+        public long promptTokens;
+        public long outputTokens;
+    }
+
+    private GeminiStream() {}
+
+    public static String read(BufferedSource source, Listener listener, Usage usage) throws IOException {
+        StringBuilder text = new StringBuilder();
+        StringBuilder event = new StringBuilder();
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.isEmpty()) {
+                dispatch(event, text, listener, usage);
+            } else if (line.startsWith("data:")) {
+                if (event.length() > 0) event.append('\n');
+                event.append(line, line.startsWith("data: ") ? 6 : 5, line.length());
+            }
+        }
+        dispatch(event, text, listener, usage);
+        if (text.length() == 0) throw new IOException("Gemini returned no text");
+        return text.toString();
+    }
+
+    private static void dispatch(StringBuilder event, StringBuilder text, Listener listener, Usage usage) throws IOException {
+        if (event.length() == 0) return;
+        String payload = event.toString();
+        event.setLength(0);
+        if (payload.equals("[DONE]")) return;
+
+        JsonObject chunk = JsonParser.parseString(payload).getAsJsonObject();
+        if (chunk.has("error")) {
+            throw new IOException("Gemini error: " + chunk.getAsJsonObject("error").get("message").getAsString());
+        }
+        JsonObject meta = usage != null ? chunk.getAsJsonObject("usageMetadata") : null;
+        if (meta != null) {
+            if (meta.has("promptTokenCount")) usage.promptTokens = meta.get("promptTokenCount").getAsLong();
+            if (meta.has("candidatesTokenCount")) usage.outputTokens = meta.get("candidatesTokenCount").getAsLong();
+        }
+        int before = text.length();
+        JsonArray candidates = chunk.getAsJsonArray("candidates");
+        if (candidates != null && candidates.size() > 0) {
+            JsonObject content = candidates.get(0).getAsJsonObject().getAsJsonObject("content");
+            JsonArray parts = content != null ? content.getAsJsonArray("parts") : null;
+            if (parts != null) {
+                for (JsonElement part : parts) {
+                    JsonElement t = part.getAsJsonObject().get("text");
+                    if (t != null) text.append(t.getAsString());
+                }
+            }
+        } else if (chunk.has("promptFeedback")) {
+            JsonElement reason = chunk.getAsJsonObject("promptFeedback").get("blockReason");
+            if (reason != null) throw new IOException("Blocked by Gemini: " + reason.getAsString());
+        }
+        if (text.length() > before && listener != null) listener.onText(text);
+    }
+}
@@ -0,0 +1,128 @@
+package com.mmchbot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+// Application-scoped HTTP layer. Every client derives from one base, so they all share a single
+// connection pool and TLS session cache; only the timeouts (and, for long polls and Gemini, the
+// dispatcher) differ per endpoint.
+// A scheduled post or a Gemini call therefore reuses the warm connection the poll loop opened.
+public final class Http {
+
+    // Telegram holds getUpdates open for up to this long, so the poll client's read timeout must exceed it.
+    public static final int LONG_POLL_TIMEOUT_S = 50;
+
+    private static final OkHttpClient BASE = new OkHttpClient.Builder()
+        .connectionPool(new ConnectionPool(8, 10, TimeUnit.MINUTES))
+        .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+        .connectTimeout(15, TimeUnit.SECONDS)
+        .retryOnConnectionFailure(true)
+        .eventListenerFactory(call -> new TimingListener())
+        .build();
+
+    // Every hosted bot keeps one async getUpdates parked here, so polls get their own dispatcher:
+    // they must not count against (or starve) the per-host limit the other Telegram calls use.
+    public static final OkHttpClient LONG_POLL = BASE.newBuilder()
+        .dispatcher(longPollDispatcher())
+        .readTimeout(LONG_POLL_TIMEOUT_S + 10, TimeUnit.SECONDS)
+        .build();
+
+    public static final OkHttpClient TELEGRAM = BASE.newBuilder()
+        .readTimeout(20, TimeUnit.SECONDS)
+        .writeTimeout(20, TimeUnit.SECONDS)
+        .build();
+
+    public static final OkHttpClient DOWNLOAD = BASE.newBuilder()
+        .readTimeout(30, TimeUnit.SECONDS)
+        .build();
+
+    // Every model in a chain is on the same host, and each caption may have its primary, a hedge and
+    // the fallbacks in flight at once: on the shared dispatcher (5 per host) two admins' races would
+    // queue behind each other, and a queued hedge only adds latency.
+    public static final OkHttpClient GEMINI = BASE.newBuilder()
+        .dispatcher(geminiDispatcher())
+        .readTimeout(90, TimeUnit.SECONDS)
+        .writeTimeout(30, TimeUnit.SECONDS)
+        .build();
+
+    private Http() {}
+
+    // Pooled sockets belong to the network they were opened on; after a switch they are dead.
+    public static void evictConnections() {
+        BASE.connectionPool().evictAll();
+    }
+
+    private static Dispatcher longPollDispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(256);
+        dispatcher.setMaxRequestsPerHost(256);
+        return dispatcher;
+    }
+
+    private static Dispatcher geminiDispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(64);
+        dispatcher.setMaxRequestsPerHost(32);
+        return dispatcher;
+    }
+
+    // Per-call connection timings; a call that never reaches connectStart reused a pooled connection.
+    private static final class TimingListener extends EventListener {
+        private static final Metrics.Histogram DNS = Metrics.histogram("http.dns_ms");
+        private static final Metrics.Histogram TLS = Metrics.histogram("http.tls_ms");
+        private static final Metrics.Histogram CONNECT = Metrics.histogram("http.connect_ms");
+        private static final LongAdder CONNECT_FAILED = Metrics.counter("http.connect_failed");
+        private static final LongAdder NEW_CONNECTIONS = Metrics.counter("http.connections_new");
+        private static final LongAdder REUSED_CONNECTIONS = Metrics.counter("http.connections_reused");
+
+        private long dnsStart, connectStart, tlsStart;
+        private boolean connected;
+
+        @Override public void dnsStart(Call call, String domainName) { dnsStart = System.nanoTime(); }
+
+        @Override public void dnsEnd(Call call, String domainName, List<InetAddress> list) {
+            DNS.record(elapsedMs(dnsStart));
+        }
+
+        @Override public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+            connectStart = System.nanoTime();
+            connected = true;
+        }
+
+        @Override public void secureConnectStart(Call call) { tlsStart = System.nanoTime(); }
+
+        @Override public void secureConnectEnd(Call call, Handshake handshake) {
+            TLS.record(elapsedMs(tlsStart));
+        }
+
+        @Override public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+            CONNECT.record(elapsedMs(connectStart));
+        }
+
+        @Override public void connectFailed(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol, IOException e) {
+            CONNECT_FAILED.increment();
+        }
+
+        @Override public void connectionAcquired(Call call, Connection connection) {
+            (connected ? NEW_CONNECTIONS : REUSED_CONNECTIONS).increment();
+        }
+
+        private static long elapsedMs(long startNanos) {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+}
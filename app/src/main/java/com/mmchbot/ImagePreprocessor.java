@@ -0,0 +1,103 @@
+package com.mmchbot;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+
+// Shrinks posters before they go to Gemini: picks the cheapest Telegram PhotoSize that is still
+// big enough, and decodes/resizes/re-encodes anything else (documents, oversized files) to fit
+// a byte budget. Caption quality barely changes below ~1000px while upload time and tokens do.
+public class ImagePreprocessor {
+
+    public static final int DEFAULT_MIN_EDGE = 768;
+    public static final int DEFAULT_MAX_BYTES = 400 * 1024;
+    private static final int START_QUALITY = 85;
+    private static final int MIN_QUALITY = 40;
+    private static final Metrics.Histogram BYTES_IN = Metrics.histogram("vision.bytes_in");
+    private static final Metrics.Histogram BYTES_OUT = Metrics.histogram("vision.bytes_out");
+    private static final Metrics.Histogram PREPROCESS = Metrics.histogram("vision.preprocess_ms");
+
+    private final int minEdge;
+    private final int maxBytes;
+
+    public ImagePreprocessor(int minEdge, int maxBytes) {
+        this.minEdge = minEdge;
+        this.maxBytes = maxBytes;
+    }
+
+    // Telegram lists PhotoSizes smallest first; take the first whose short edge reaches minEdge.
+    public Update.PhotoSize pickPhotoSize(List<Update.PhotoSize> photos) {
+        for (Update.PhotoSize size : photos) {
+            if (Math.min(size.width, size.height) >= minEdge) return size;
+        }
+        return photos.get(photos.size() - 1);
+    }
+
+    // JPEGs already inside the budget are streamed as-is; a size of 0 means Telegram didn't say.
+    public boolean needsRecompression(String mimeType, long sizeBytes) {
+        return !"image/jpeg".equals(mimeType) || sizeBytes > maxBytes;
+    }
+
+    // Buffers at most maxBytes + 1 of the download to check it really fits: Telegram's size can be
+    // missing or stale. Whatever was buffered is still in the source for recompress().
+    public boolean fitsBudget(BufferedSource source) throws IOException {
+        return !source.request(maxBytes + 1L);
+    }
+
+    // Spools the download to a temp file (never the heap), decodes it subsampled close to
+    // minEdge, then lowers JPEG quality until the result fits in maxBytes.
+    public byte[] recompress(BufferedSource source, File tempDir) throws IOException {
+        long started = SystemClock.elapsedRealtime();
+        File spool = File.createTempFile("vision", ".img", tempDir);
+        try {
+            try (Sink out = Okio.sink(spool)) {
+                source.readAll(out);
+            }
+
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(spool.getPath(), bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) throw new IOException("Unsupported image");
+
+            int shortEdge = Math.min(bounds.outWidth, bounds.outHeight);
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inSampleSize = 1;
+            while (shortEdge / (opts.inSampleSize * 2) >= minEdge) opts.inSampleSize *= 2;
+            Bitmap bitmap = BitmapFactory.decodeFile(spool.getPath(), opts);
+            if (bitmap == null) throw new IOException("Decode failed");
+
+            int decodedShort = Math.min(bitmap.getWidth(), bitmap.getHeight());
+            if (decodedShort > minEdge) {
+                float scale = (float) minEdge / decodedShort;
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                        Math.round(bitmap.getWidth() * scale), Math.round(bitmap.getHeight() * scale), true);
+                if (scaled != bitmap) bitmap.recycle();
+                bitmap = scaled;
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(maxBytes);
+            int quality = START_QUALITY;
+            while (true) {
+                out.reset();
+                bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+                if (out.size() <= maxBytes || quality <= MIN_QUALITY) break;
+                quality -= 10;
+            }
+            bitmap.recycle();
+
+            BYTES_IN.record(spool.length());
+            BYTES_OUT.record(out.size());
+            PREPROCESS.record(SystemClock.elapsedRealtime() - started);
+            return out.toByteArray();
+        } finally {
+            spool.delete();
+        }
+    }
+}
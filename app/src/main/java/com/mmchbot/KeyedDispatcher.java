@@ -0,0 +1,140 @@
+package com.mmchbot;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs tasks with the same key (chat id) strictly in order and tasks with different keys
+// in parallel on a bounded pool. Outside producers block once maxPending tasks are queued;
+// the pool's own threads never block so a task can always enqueue follow-up work.
+// Queued and running tasks hold the process wakelock (WakeScope) until they finish.
+public class KeyedDispatcher {
+
+    private final int maxPending;
+    private final ThreadPoolExecutor pool;
+    private final Map<Long, Lane> lanes = new HashMap<>();
+    private final Metrics.Histogram depthHistogram;
+    private int pending = 0;
+    private boolean shutdown = false;
+
+    public KeyedDispatcher(String name, int threads, int maxPending) {
+        this.maxPending = maxPending;
+        this.depthHistogram = Metrics.histogram(name + ".lane_depth");
+        Metrics.gauge(name + ".pending", this::pending);
+        Metrics.gauge(name + ".lanes", this::lanes);
+        Metrics.gauge(name + ".max_lane_depth", this::maxDepth);
+        AtomicInteger seq = new AtomicInteger();
+        ThreadFactory factory = r -> new Worker(r, name + "-" + seq.incrementAndGet());
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public void execute(long key, Runnable task) {
+        Lane toSchedule = null;
+        synchronized (this) {
+            if (shutdown) return;
+            if (!isPoolThread()) {
+                while (pending >= maxPending && !shutdown) {
+                    try { wait(); } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            pending++;
+            WakeScope.acquire();
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key);
+                lanes.put(key, lane);
+            }
+            lane.tasks.add(task);
+            depthHistogram.record(lane.tasks.size());
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                toSchedule = lane;
+            }
+        }
+        if (toSchedule != null) pool.execute(toSchedule);
+    }
+
+    // --- GAUGES ---
+
+    public synchronized int pending() { return pending; }
+
+    public synchronized int lanes() { return lanes.size(); }
+
+    public synchronized int maxDepth() {
+        int max = 0;
+        for (Lane lane : lanes.values()) max = Math.max(max, lane.tasks.size());
+        return max;
+    }
+
+    public synchronized Map<Long, Integer> depths() {
+        Map<Long, Integer> out = new HashMap<>();
+        for (Lane lane : lanes.values()) out.put(lane.key, lane.tasks.size());
+        return out;
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            lanes.clear();
+            notifyAll();
+        }
+        pool.shutdown();
+    }
+
+    private boolean isPoolThread() {
+        Thread t = Thread.currentThread();
+        return t instanceof Worker && ((Worker) t).owner() == this;
+    }
+
+    private final class Worker extends Thread {
+        Worker(Runnable r, String threadName) {
+            super(r, threadName);
+            setDaemon(true);
+        }
+
+        KeyedDispatcher owner() { return KeyedDispatcher.this; }
+    }
+
+    private final class Lane implements Runnable {
+        final long key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        boolean scheduled;
+
+        Lane(long key) { this.key = key; }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable next;
+                synchronized (KeyedDispatcher.this) {
+                    next = tasks.poll();
+                    if (next == null) {
+                        scheduled = false;
+                        lanes.remove(key);
+                        return;
+                    }
+                }
+                try {
+                    next.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    WakeScope.release();
+                    synchronized (KeyedDispatcher.this) {
+                        pending--;
+                        KeyedDispatcher.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -2,6 +2,8 @@ package com.mmchbot;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.widget.ArrayAdapter;
 import android.widget.Spinner;
 import android.widget.TextView;
@@ -9,18 +11,30 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import com.google.android.material.textfield.TextInputEditText;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
 
 public class MainActivity extends AppCompatActivity {
 
     private TextInputEditText token, botName, channel, gemini, prompt;
     private Spinner modelSpinner;
-    private TextView logs;
+    private TextView logs, stats;
+    // The service runs in this process, so the dashboard reads Metrics directly once a second.
+    private static final long STATS_REFRESH_MS = 1000;
+    private final Handler ui = new Handler(Looper.getMainLooper());
+    private final Runnable refreshStats = new Runnable() {
+        @Override
+        public void run() {
+            String report = Metrics.report();
+            stats.setText(report.isEmpty() ? "> Waiting for data..." : report);
+            ui.postDelayed(this, STATS_REFRESH_MS);
+        }
+    };
     private final String SETTINGS_FILE = "settings.json";
 
     private final String DEFAULT_PROMPT = 
@@ -54,6 +68,7 @@ public class MainActivity extends AppCompatActivity {
         prompt = findViewById(R.id.inputPrompt);
         modelSpinner = findViewById(R.id.spinnerModel);
         logs = findViewById(R.id.txtLogs);
+        stats = findViewById(R.id.txtStats);
 
         // Setup Spinner
         String[] models = {"gemini-2.5-flash", "gemini-2.5-pro", "gemini-3-pro-preview", "gemini-flash-lite-latest"};
@@ -63,8 +78,7 @@ public class MainActivity extends AppCompatActivity {
         loadSettingsFromJson();
 
         findViewById(R.id.btnSave).setOnClickListener(v -> {
-            saveSettingsToJson();
-            restartBotService();
+            if (saveSettingsToJson()) applySettings();
         });
 
         findViewById(R.id.btnStop).setOnClickListener(v -> {
@@ -74,6 +88,18 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        ui.post(refreshStats);
+    }
+
+    @Override
+    protected void onPause() {
+        ui.removeCallbacks(refreshStats);
+        super.onPause();
+    }
+
     private void loadSettingsFromJson() {
         File file = new File(getFilesDir(), SETTINGS_FILE);
         if (!file.exists()) {
@@ -82,17 +108,19 @@ public class MainActivity extends AppCompatActivity {
         }
 
         try (FileReader reader = new FileReader(file)) {
-            Map<String, String> settings = new Gson().fromJson(reader, new TypeToken<Map<String, String>>(){}.getType());
-            if (settings != null) {
-                token.setText(settings.getOrDefault("token", ""));
-                botName.setText(settings.getOrDefault("botName", ""));
-                channel.setText(settings.getOrDefault("channel", ""));
-                gemini.setText(settings.getOrDefault("gemini", ""));
+            // Read as a tree: besides the primary bot's strings the file may hold a "bots" array.
+            JsonElement root = JsonParser.parseReader(reader);
+            if (root.isJsonObject()) {
+                JsonObject settings = root.getAsJsonObject();
+                token.setText(string(settings, "token", ""));
+                botName.setText(string(settings, "botName", ""));
+                channel.setText(string(settings, "channel", ""));
+                gemini.setText(string(settings, "gemini", ""));
                 
-                String savedPrompt = settings.getOrDefault("prompt", "");
+                String savedPrompt = string(settings, "prompt", "");
                 prompt.setText(savedPrompt.isEmpty() ? DEFAULT_PROMPT : savedPrompt);
                 
-                String savedModel = settings.getOrDefault("model", "gemini-2.5-flash");
+                String savedModel = string(settings, "model", "gemini-2.5-flash");
                 modelSpinner.setSelection(savedModel.contains("pro") ? 1 : 0);
                 
                 logs.setText("✅ Settings loaded from storage.");
@@ -102,31 +130,55 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void saveSettingsToJson() {
-        Map<String, String> settings = new HashMap<>();
-        settings.put("token", token.getText().toString().trim());
-        settings.put("botName", botName.getText().toString().trim());
-        settings.put("channel", channel.getText().toString().trim());
-        settings.put("gemini", gemini.getText().toString().trim());
-        settings.put("prompt", prompt.getText().toString());
-        settings.put("model", modelSpinner.getSelectedItem().toString());
+    private boolean saveSettingsToJson() {
+        // Start from the stored file so keys this screen doesn't edit (e.g. vision_min_edge, bots) survive.
+        JsonObject settings = readSettings();
+        settings.addProperty("token", token.getText().toString().trim());
+        settings.addProperty("botName", botName.getText().toString().trim());
+        settings.addProperty("channel", channel.getText().toString().trim());
+        settings.addProperty("gemini", gemini.getText().toString().trim());
+        settings.addProperty("prompt", prompt.getText().toString());
+        settings.addProperty("model", modelSpinner.getSelectedItem().toString());
 
         try {
+            // Write a temp file and rename it over settings.json, so the service's ConfigStore
+            // never reads a half-written file.
             File file = new File(getFilesDir(), SETTINGS_FILE);
-            try (FileWriter writer = new FileWriter(file)) {
+            File temp = new File(getFilesDir(), SETTINGS_FILE + ".tmp");
+            try (FileWriter writer = new FileWriter(temp)) {
                 new Gson().toJson(settings, writer);
             }
+            if (!temp.renameTo(file)) throw new IOException("rename failed");
             Toast.makeText(this, "Settings Saved!", Toast.LENGTH_SHORT).show();
             logs.setText(" Settings Saved.");
+            return true;
         } catch (Exception e) {
             Toast.makeText(this, "Save Failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            return false;
         }
     }
 
-    private void restartBotService() {
-        Intent intent = new Intent(this, BotService.class);
-        stopService(intent); 
-        startForegroundService(intent); 
-        logs.append("\n🚀 Service Restarted.");
+    private JsonObject readSettings() {
+        File file = new File(getFilesDir(), SETTINGS_FILE);
+        if (file.exists()) {
+            try (FileReader reader = new FileReader(file)) {
+                JsonElement root = JsonParser.parseReader(reader);
+                if (root.isJsonObject()) return root.getAsJsonObject();
+            } catch (Exception ignored) {}
+        }
+        return new JsonObject();
+    }
+
+    private static String string(JsonObject settings, String key, String fallback) {
+        JsonElement v = settings.get(key);
+        return v != null && v.isJsonPrimitive() ? v.getAsString() : fallback;
+    }
+
+    // A running service swaps the new settings in place (no restart, nothing dropped); a stopped
+    // one is simply started with them.
+    private void applySettings() {
+        Intent intent = new Intent(this, BotService.class).setAction(BotService.ACTION_RELOAD_CONFIG);
+        startForegroundService(intent);
+        logs.append("\n🚀 Settings applied.");
     }
 }
@@ -0,0 +1,127 @@
+package com.mmchbot;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Process-wide counters, gauges and latency histograms. Everything here is safe to call from any
+// thread. Recording never locks or allocates; hot paths hold on to the LongAdder/Histogram they
+// record into instead of looking the name up per event. report() renders all of it for /stats
+// and the MainActivity dashboard.
+public final class Metrics {
+
+    private static final ConcurrentHashMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    // A value sampled when a report is built (queue depths and the like). Re-registering a name
+    // replaces the previous supplier, so a restarted service doesn't report its old instance.
+    public static void gauge(String name, LongSupplier supplier) {
+        GAUGES.put(name, supplier);
+    }
+
+    // One line per metric, sorted by name within each section.
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        Map<String, LongSupplier> gauges = new TreeMap<>(GAUGES);
+        if (!gauges.isEmpty()) {
+            sb.append("GAUGES\n");
+            for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+                long value;
+                try { value = e.getValue().getAsLong(); } catch (Exception ex) { value = -1; }
+                sb.append(e.getKey()).append(" = ").append(value).append('\n');
+            }
+        }
+        Map<String, LongAdder> counters = new TreeMap<>(COUNTERS);
+        if (!counters.isEmpty()) {
+            sb.append("COUNTERS\n");
+            for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+                sb.append(e.getKey()).append(" = ").append(e.getValue().sum()).append('\n');
+            }
+        }
+        Map<String, Histogram> histograms = new TreeMap<>(HISTOGRAMS);
+        if (!histograms.isEmpty()) {
+            sb.append("HISTOGRAMS (p50/p95/p99/max)\n");
+            for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+                Histogram h = e.getValue();
+                if (h.count() == 0) continue;
+                sb.append(e.getKey()).append(" n=").append(h.count()).append(' ')
+                    .append(h.percentile(50)).append('/').append(h.percentile(95)).append('/')
+                    .append(h.percentile(99)).append('/').append(h.max()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Log-linear buckets: exact below 16, then 8 sub-buckets per power of two (~12% error).
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int LINEAR = 16;
+        private static final int BUCKETS = LINEAR + (64 - 4) * (1 << SUB_BITS);
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(indexOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) { }
+        }
+
+        public long count() { return count.get(); }
+
+        public long max() { return max.get(); }
+
+        public long mean() {
+            long c = count.get();
+            return c == 0 ? 0 : sum.get() / c;
+        }
+
+        // Upper bound of the bucket holding the requested percentile (0-100).
+        public long percentile(double p) {
+            long total = count.get();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * p / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        private static int indexOf(long v) {
+            if (v < LINEAR) return (int) v;
+            int msb = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (msb - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return LINEAR + ((msb - 4) << SUB_BITS) + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < LINEAR) return index;
+            int msb = ((index - LINEAR) >> SUB_BITS) + 4;
+            int sub = (index - LINEAR) & ((1 << SUB_BITS) - 1);
+            long base = (1L << msb) + ((long) sub << (msb - SUB_BITS));
+            return base + (1L << (msb - SUB_BITS)) - 1;
+        }
+    }
+}
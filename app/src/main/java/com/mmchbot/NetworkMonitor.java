@@ -0,0 +1,138 @@
+package com.mmchbot;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Process-wide view of whether the default network can reach the Bot API: validated internet and
+// not blocked for this app (Doze, data saver). Polls and sends park while it is down instead of
+// backing off against a dead network, and listeners hear the moment it is usable again. A switch
+// to another network and the end of a Doze idle window are reported as "online" too: sockets
+// opened before either are usually dead, so the poll should be re-issued right away.
+public final class NetworkMonitor {
+
+    public interface Listener {
+        // Called on the ConnectivityManager callback thread or the main thread; hand it off.
+        void onNetworkChanged(boolean online);
+    }
+
+    private static NetworkMonitor instance;
+    // Optimistic until the first callback, and in processes that never start the monitor.
+    private static volatile boolean online = true;
+
+    private final ConnectivityManager connectivity;
+    private final PowerManager power;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Network network;
+    private boolean validated;
+    private boolean blocked;
+    private long downSince;
+
+    public static synchronized NetworkMonitor get(Context context) {
+        if (instance == null) instance = new NetworkMonitor(context.getApplicationContext());
+        return instance;
+    }
+
+    public static boolean isOnline() {
+        return online;
+    }
+
+    // Tests only.
+    static void setOnline(boolean value) {
+        online = value;
+    }
+
+    private NetworkMonitor(Context context) {
+        connectivity = context.getSystemService(ConnectivityManager.class);
+        power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        Metrics.gauge("network.online", () -> online ? 1 : 0);
+        Metrics.gauge("power.device_idle", () -> power.isDeviceIdleMode() ? 1 : 0);
+        Metrics.gauge("power.save_mode", () -> power.isPowerSaveMode() ? 1 : 0);
+        // Nothing is called back while there is no default network at all, so start from the current one.
+        network = connectivity.getActiveNetwork();
+        if (network == null) {
+            online = false;
+            downSince = SystemClock.elapsedRealtime();
+        }
+        connectivity.registerDefaultNetworkCallback(callback);
+        context.registerReceiver(idleReceiver, new IntentFilter(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED));
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private final ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network n, NetworkCapabilities caps) {
+            synchronized (NetworkMonitor.this) {
+                validated = caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                        && caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+                update(n);
+            }
+        }
+
+        // API 29+; older releases keep the app's network up through Doze for a foreground service.
+        @Override
+        public void onBlockedStatusChanged(Network n, boolean isBlocked) {
+            synchronized (NetworkMonitor.this) {
+                blocked = isBlocked;
+                update(n);
+            }
+        }
+
+        @Override
+        public void onLost(Network n) {
+            synchronized (NetworkMonitor.this) {
+                validated = false;
+                blocked = false;
+                update(null);
+            }
+        }
+    };
+
+    private final BroadcastReceiver idleReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (power.isDeviceIdleMode()) return;
+            Metrics.counter("power.idle_exits").increment();
+            if (online) notifyListeners(true);
+        }
+    };
+
+    // Capabilities are re-sent on every signal change, so only a change in usability or in the
+    // network itself is passed on.
+    private void update(Network n) {
+        boolean usable = n != null && validated && !blocked;
+        boolean changed = usable != online || (usable && !n.equals(network));
+        network = usable ? n : null;
+        if (!changed) return;
+        long now = SystemClock.elapsedRealtime();
+        if (usable && !online) {
+            Metrics.histogram("network.outage_ms").record(now - downSince);
+        } else if (!usable) {
+            downSince = now;
+        }
+        online = usable;
+        Metrics.counter(usable ? "network.up" : "network.down").increment();
+        Log.i("NetworkMonitor", usable ? "Network usable: " + n : "Network down");
+        notifyListeners(usable);
+    }
+
+    private void notifyListeners(boolean usable) {
+        for (Listener listener : listeners) listener.onNetworkChanged(usable);
+    }
+}
@@ -0,0 +1,37 @@
+package com.mmchbot;
+
+// One channel post in the durable outbox (see BotDatabase / OutboxWorker).
+public class OutboxItem {
+
+    public static final int PENDING = 0;
+    public static final int IN_FLIGHT = 1;
+    public static final int SENT = 2;
+    public static final int FAILED = 3;
+
+    public long id;
+    public long botId;
+    public String idemKey;
+    public String chat;
+    public String photo;
+    public String caption;
+    public String link;
+    public long adminId;
+    public int state;
+    public int attempts;
+    public long dueAt;
+    public long nextAttemptAt;
+
+    public OutboxItem() {}
+
+    public OutboxItem(long botId, String idemKey, String chat, String photo, String caption, String link, long adminId, long dueAt) {
+        this.botId = botId;
+        this.idemKey = idemKey;
+        this.chat = chat;
+        this.photo = photo;
+        this.caption = caption;
+        this.link = link;
+        this.adminId = adminId;
+        this.dueAt = dueAt;
+        this.nextAttemptAt = dueAt;
+    }
+}
@@ -0,0 +1,264 @@
+package com.mmchbot;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import okhttp3.RequestBody;
+
+// The one delivery path for channel posts, shared by BotService ("Post Now") and AlarmReceiver
+// (scheduled posts). Delivery is at-least-once: a row only becomes SENT after Telegram accepted
+// it, and rows a killed process left IN_FLIGHT go back to PENDING when the worker is created.
+// The idempotency key on each row stops the same post from being queued twice.
+public class OutboxWorker {
+
+    private static final int BATCH = 20;
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long RETRY_BASE_MS = 30_000;
+    private static final LongAdder SENT = Metrics.counter("outbox.sent");
+    private static final Metrics.Histogram LAG = Metrics.histogram("outbox.lag_ms");
+    private static final LongAdder FAILED = Metrics.counter("outbox.failed");
+    private static final LongAdder RETRIED = Metrics.counter("outbox.retried");
+    private static final Metrics.Histogram DRAIN_RATE = Metrics.histogram("outbox.drain_per_min");
+
+    // Told about every row that reaches a final state (SENT or FAILED); called on the outbox thread.
+    public interface Listener {
+        void onOutboxFinished(OutboxItem item, boolean sent);
+    }
+
+    private static OutboxWorker instance;
+
+    private final Context context;
+    private final BotDatabase db;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "outbox");
+        t.setDaemon(true);
+        return t;
+    });
+    // One in-process timer per bot token; the alarm (PostScheduler) covers all bots at once.
+    private final Map<String, ScheduledFuture<?>> wakeups = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public static synchronized OutboxWorker get(Context context) {
+        if (instance == null) instance = new OutboxWorker(context.getApplicationContext());
+        return instance;
+    }
+
+    // Tests only: the worker holds the BotDatabase of the application it was created for.
+    static synchronized void reset() {
+        if (instance != null) instance.executor.shutdownNow();
+        instance = null;
+    }
+
+    private OutboxWorker(Context context) {
+        this.context = context;
+        this.db = BotDatabase.getInstance(context);
+        db.recoverOutbox();
+    }
+
+    private String telegramApi() {
+        List<BotConfig> bots = ConfigStore.get(context).current();
+        return bots.isEmpty() ? BotConfig.DEFAULT_TELEGRAM_API : bots.get(0).telegramApi;
+    }
+
+    public boolean enqueue(OutboxItem item) {
+        return db.enqueueOutbox(item);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public CompletableFuture<Integer> drain(String token) {
+        return drain(token, 0);
+    }
+
+    // Delivers everything due within windowMs from now; completes with the number of posts sent.
+    public CompletableFuture<Integer> drain(String token, long windowMs) {
+        Drain drain = new Drain(token, windowMs);
+        submit(drain::next);
+        return drain.done;
+    }
+
+    // Runs a drain step on the outbox thread, holding the wakelock from submission to the end of the
+    // step. Waiting on Telegram is not a step: the sender holds the lock while a post can go out.
+    private void submit(Runnable step) {
+        WakeScope.acquire();
+        executor.execute(() -> {
+            try {
+                step.run();
+            } finally {
+                WakeScope.release();
+            }
+        });
+    }
+
+    // One bot's pass over its due posts: claim a batch, hand it to the sender, and record the
+    // verdicts once Telegram has answered them all, then claim the next. Nothing blocks on the
+    // paced sends, so other bots' drains share the outbox thread while a batch goes out.
+    private final class Drain {
+        final String token;
+        final long windowMs;
+        final long botId;
+        final TelegramSender sender;
+        final long started = SystemClock.elapsedRealtime();
+        final CompletableFuture<Integer> done = new CompletableFuture<>();
+        int sent = 0;
+        // The batch on its way out; failed() hands back whatever of it record() never finished.
+        List<OutboxItem> claimed;
+
+        Drain(String token, long windowMs) {
+            this.token = token;
+            this.windowMs = windowMs;
+            this.botId = BotConfig.botId(token);
+            this.sender = TelegramSender.forToken(telegramApi(), token);
+        }
+
+        void next() {
+            try {
+                // Nothing is claimed offline; BotInstance drains again when the network is back.
+                if (!NetworkMonitor.isOnline()) {
+                    park();
+                    return;
+                }
+                List<OutboxItem> batch = db.claimDueOutbox(botId, System.currentTimeMillis() + windowMs, BATCH);
+                claimed = batch;
+                if (batch.isEmpty()) {
+                    finish();
+                    return;
+                }
+                // The sender paces these to the channel limit; the verdicts come back on its threads.
+                List<CompletableFuture<String>> results = new ArrayList<>(batch.size());
+                for (OutboxItem item : batch) {
+                    results.add(sender.send("sendPhoto", item.chat, TelegramSender.Priority.BULK, buildPost(item)));
+                }
+                CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((ignored, error) -> submit(() -> record(batch, results)));
+            } catch (Exception e) {
+                failed(e);
+            }
+        }
+
+        void record(List<OutboxItem> batch, List<CompletableFuture<String>> results) {
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    OutboxItem item = batch.get(i);
+                    String response = results.get(i).join();
+                    item.attempts++;
+                    long now = System.currentTimeMillis();
+                    if (response != null) {
+                        db.finishOutbox(item, OutboxItem.SENT, item.nextAttemptAt, null);
+                        SENT.increment();
+                        LAG.record(Math.max(0, now - item.dueAt));
+                        notifyAdmin(sender, item.adminId, "✅ **Posted!**");
+                        notifyListeners(item, true);
+                        sent++;
+                    } else if (item.attempts >= MAX_ATTEMPTS) {
+                        db.finishOutbox(item, OutboxItem.FAILED, item.nextAttemptAt, "gave up after " + item.attempts + " attempts");
+                        FAILED.increment();
+                        notifyAdmin(sender, item.adminId, "❌ **Failed to Post.** Check Channel ID.");
+                        notifyListeners(item, false);
+                    } else {
+                        long next = now + (RETRY_BASE_MS << (item.attempts - 1));
+                        db.finishOutbox(item, OutboxItem.PENDING, next, "send failed");
+                        RETRIED.increment();
+                    }
+                }
+            } catch (Exception e) {
+                failed(e);
+                return;
+            }
+            next();
+        }
+
+        void finish() {
+            report();
+            scheduleNext(token);
+            done.complete(sent);
+        }
+
+        // Offline the due rows stay due: a timer or alarm for them would only bring the drain
+        // straight back to find the network still down. Nothing is re-armed until it returns.
+        void park() {
+            report();
+            done.complete(sent);
+        }
+
+        private void report() {
+            long elapsed = SystemClock.elapsedRealtime() - started;
+            if (sent > 0) {
+                DRAIN_RATE.record(sent * 60_000L / Math.max(1, elapsed));
+                Log.d("OutboxWorker", "Drained " + sent + " posts in " + elapsed + " ms");
+            }
+        }
+
+        // Left IN_FLIGHT, the batch would wait for the next process start; it goes back to PENDING
+        // a retry interval out, so an error that repeats doesn't spin the drain.
+        void failed(Exception e) {
+            Log.e("OutboxWorker", "Drain failed: " + e.getMessage());
+            try {
+                if (claimed != null) db.releaseOutbox(claimed, System.currentTimeMillis() + RETRY_BASE_MS);
+                scheduleNext(token);
+            } catch (Exception again) {
+                Log.e("OutboxWorker", "Batch not released: " + again.getMessage());
+            }
+            done.complete(sent);
+        }
+    }
+
+    // While the process lives an in-process timer handles the next post; the single alarm
+    // covers the case where the process is gone by then.
+    private void scheduleNext(String token) {
+        ScheduledFuture<?> previous = wakeups.remove(token);
+        if (previous != null) previous.cancel(false);
+        long next = db.nextOutboxAttemptAt(BotConfig.botId(token));
+        if (next != 0) {
+            long delay = Math.max(0, next - System.currentTimeMillis());
+            wakeups.put(token, executor.schedule(() -> { drain(token); }, delay, TimeUnit.MILLISECONDS));
+        }
+        // The in-process timer is already set, so a failure here only loses the fallback.
+        try {
+            PostScheduler.arm(context);
+        } catch (Exception e) {
+            Log.e("OutboxWorker", "Alarm not armed: " + e.getMessage());
+        }
+    }
+
+    // Tests only.
+    boolean hasWakeup(String token) {
+        return wakeups.containsKey(token);
+    }
+
+    private void notifyListeners(OutboxItem item, boolean sent) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onOutboxFinished(item, sent);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static RequestBody buildPost(OutboxItem item) {
+        return TelegramBodies.channelPost(item.chat, item.photo, item.caption, item.link);
+    }
+
+    private static void notifyAdmin(TelegramSender sender, long adminId, String text) {
+        if (adminId == 0) return;
+        sender.send("sendMessage", String.valueOf(adminId), TelegramSender.Priority.CHAT, TelegramBodies.message(adminId, text));
+    }
+}
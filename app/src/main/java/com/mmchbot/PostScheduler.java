@@ -0,0 +1,37 @@
+package com.mmchbot;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+// Keeps exactly one alarm armed: the earliest pending row of the outbox (indexed on
+// state, next_attempt_at). A firing drains everything due within BATCH_WINDOW_MS and
+// re-arms, so device wakeups scale with distinct time windows rather than with post count.
+public final class PostScheduler {
+
+    public static final long BATCH_WINDOW_MS = 60_000;
+    private static final int REQUEST_CODE = 1;
+
+    private PostScheduler() {}
+
+    public static void arm(Context context) {
+        long next = BotDatabase.getInstance(context).nextOutboxAttemptAt();
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Same request code every time, so arming replaces the previous alarm instead of adding one.
+        PendingIntent pi = PendingIntent.getBroadcast(context, REQUEST_CODE, new Intent(context, AlarmReceiver.class),
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+        if (next == 0) {
+            am.cancel(pi);
+            return;
+        }
+        // From API 31 exact alarms need SCHEDULE_EXACT_ALARM, which the user can revoke; an inexact
+        // alarm still fires in Doze, just within the system's batching window.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S || am.canScheduleExactAlarms()) {
+            am.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next, pi);
+        } else {
+            am.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next, pi);
+        }
+    }
+}
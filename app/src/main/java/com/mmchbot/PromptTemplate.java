@@ -0,0 +1,40 @@
+package com.mmchbot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A caption prompt split once, at config load, around its {name} placeholders; render() then only
+// concatenates into a buffer sized up front instead of scanning the template on every caption.
+public final class PromptTemplate {
+
+    private static final String PLACEHOLDER = "{name}";
+
+    private final String[] parts;
+    private final int fixedLength;
+
+    private PromptTemplate(String[] parts) {
+        this.parts = parts;
+        int length = 0;
+        for (String part : parts) length += part.length();
+        this.fixedLength = length;
+    }
+
+    public static PromptTemplate compile(String template) {
+        List<String> parts = new ArrayList<>();
+        int from = 0;
+        int at;
+        while ((at = template.indexOf(PLACEHOLDER, from)) >= 0) {
+            parts.add(template.substring(from, at));
+            from = at + PLACEHOLDER.length();
+        }
+        parts.add(template.substring(from));
+        return new PromptTemplate(parts.toArray(new String[0]));
+    }
+
+    public String render(String name) {
+        StringBuilder sb = new StringBuilder(fixedLength + (parts.length - 1) * name.length());
+        sb.append(parts[0]);
+        for (int i = 1; i < parts.length; i++) sb.append(name).append(parts[i]);
+        return sb.toString();
+    }
+}
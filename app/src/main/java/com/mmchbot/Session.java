@@ -0,0 +1,36 @@
+package com.mmchbot;
+
+// Conversation state for one chat: the current step plus the fields collected so far.
+// Stored column-per-field in the sessions table (see BotDatabase).
+public class Session {
+
+    public int step;
+    public String photo;        // full-size file_id that gets posted
+    public String photoUid;     // file_unique_id, stable across bots/sizes (caption cache key)
+    public String visionPhoto;  // the (smaller) file_id Gemini sees
+    public String visionMime;
+    public long visionBytes;
+    public String name;
+    public String link;
+    public String desc;
+    public String postKey;      // outbox idempotency key, set when the preview is shown
+    public long createdAt = System.currentTimeMillis();
+    public long updatedAt = createdAt;
+
+    public Session copy() {
+        Session s = new Session();
+        s.step = step;
+        s.photo = photo;
+        s.photoUid = photoUid;
+        s.visionPhoto = visionPhoto;
+        s.visionMime = visionMime;
+        s.visionBytes = visionBytes;
+        s.name = name;
+        s.link = link;
+        s.desc = desc;
+        s.postKey = postKey;
+        s.createdAt = createdAt;
+        s.updatedAt = updatedAt;
+        return s;
+    }
+}
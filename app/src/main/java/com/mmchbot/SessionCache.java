@@ -0,0 +1,199 @@
+package com.mmchbot;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Write-behind cache in front of BotDatabase. Reads hit memory (read-through on a miss),
+// writes only mark the entry dirty; a background flush persists dirty entries in one
+// transaction every FLUSH_INTERVAL_MS and on close(). Callers always get/put copies.
+// One cache serves every bot in the process; each bot works through its own forBot() view.
+// Finished updates are committed in the same flush (see BotDatabase.saveStates), so after a
+// crash the journal replays exactly the updates whose session writes never reached disk.
+public class SessionCache {
+
+    private static final int MAX_ENTRIES = 256;
+    private static final long IDLE_EVICT_MS = 30 * 60 * 1000L;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private final BotDatabase db;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-flush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Access-ordered so the eldest entry is the least recently used one.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            if (size() <= MAX_ENTRIES) return false;
+            if (eldest.getValue().dirty) evictedDirty.put(eldest.getKey(), eldest.getValue().session);
+            return true;
+        }
+    };
+    // Dirty entries pushed out by LRU before their flush; still authoritative for reads.
+    private final Map<Key, Session> evictedDirty = new HashMap<>();
+    // Update ids (per bot) whose handlers returned since the last flush.
+    private Map<Long, List<Long>> processed = new HashMap<>();
+    private final Object flushLock = new Object();
+
+    public SessionCache(BotDatabase db) {
+        this.db = db;
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public View forBot(long botId) {
+        return new View(botId);
+    }
+
+    public Session get(Key chatId) {
+        synchronized (this) {
+            Entry e = entries.get(chatId);
+            if (e != null) {
+                e.lastAccess = SystemClock.elapsedRealtime();
+                return e.session.copy();
+            }
+            Session evicted = evictedDirty.get(chatId);
+            if (evicted != null) return evicted.copy();
+        }
+
+        Session loaded = db.getSession(chatId.bot, chatId.chat);
+        synchronized (this) {
+            Entry e = entries.get(chatId);
+            if (e == null) {
+                e = new Entry(loaded, false);
+                entries.put(chatId, e);
+            }
+            return e.session.copy();
+        }
+    }
+
+    public synchronized void put(Key chatId, Session value) {
+        Session session = value.copy();
+        session.updatedAt = System.currentTimeMillis();
+        Entry e = entries.get(chatId);
+        if (e == null) {
+            entries.put(chatId, new Entry(session, true));
+        } else {
+            e.session = session;
+            e.dirty = true;
+            e.lastAccess = SystemClock.elapsedRealtime();
+        }
+        evictedDirty.remove(chatId);
+    }
+
+    // Called once an update's handler has returned; any put() it made is already in the cache.
+    public synchronized void processed(long botId, long updateId) {
+        List<Long> ids = processed.get(botId);
+        if (ids == null) {
+            ids = new ArrayList<>();
+            processed.put(botId, ids);
+        }
+        ids.add(updateId);
+    }
+
+    // Dirty entries are snapshotted under the cache lock and written outside it; flushLock keeps
+    // batches in order so an older snapshot can never overwrite a newer one.
+    public void flush() {
+        synchronized (flushLock) {
+            Map<Key, Session> batch = new HashMap<>();
+            Map<Long, List<Long>> done;
+            synchronized (this) {
+                done = processed;
+                processed = new HashMap<>();
+                batch.putAll(evictedDirty);
+                long idleCutoff = SystemClock.elapsedRealtime() - IDLE_EVICT_MS;
+                Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Key, Entry> me = it.next();
+                    Entry e = me.getValue();
+                    if (e.dirty) {
+                        batch.put(me.getKey(), e.session);
+                        e.dirty = false;
+                    } else if (e.lastAccess < idleCutoff) {
+                        it.remove();
+                    }
+                }
+            }
+            if (batch.isEmpty() && done.isEmpty()) return;
+
+            boolean ok = db.saveStates(batch, done);
+            synchronized (this) {
+                if (!ok) {
+                    for (Map.Entry<Long, List<Long>> me : done.entrySet()) {
+                        for (long updateId : me.getValue()) processed(me.getKey(), updateId);
+                    }
+                }
+                for (Map.Entry<Key, Session> me : batch.entrySet()) {
+                    Key chatId = me.getKey();
+                    if (ok) {
+                        if (evictedDirty.get(chatId) == me.getValue()) evictedDirty.remove(chatId);
+                        continue;
+                    }
+                    Entry e = entries.get(chatId);
+                    if (e != null && e.session == me.getValue()) e.dirty = true;
+                }
+            }
+            if (!ok) Log.w("SessionCache", "Flush failed, " + batch.size() + " sessions kept dirty");
+        }
+    }
+
+    public void close() {
+        flusher.shutdown();
+        try { flusher.awaitTermination(2, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
+        flush();
+    }
+
+    public static final class Key {
+        public final long bot;
+        public final long chat;
+
+        Key(long bot, long chat) {
+            this.bot = bot;
+            this.chat = chat;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).bot == bot && ((Key) o).chat == chat;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(bot) * 31 + Long.hashCode(chat);
+        }
+    }
+
+    // Sessions of one bot, addressed by chat id.
+    public final class View {
+        private final long botId;
+
+        View(long botId) { this.botId = botId; }
+
+        public Session get(long chatId) { return SessionCache.this.get(new Key(botId, chatId)); }
+
+        public void put(long chatId, Session session) { SessionCache.this.put(new Key(botId, chatId), session); }
+
+        public void processed(long updateId) { SessionCache.this.processed(botId, updateId); }
+    }
+
+    private static final class Entry {
+        Session session;
+        boolean dirty;
+        long lastAccess = SystemClock.elapsedRealtime();
+
+        Entry(Session session, boolean dirty) {
+            this.session = session;
+            this.dirty = dirty;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.mmchbot;
+
+import com.google.gson.JsonPrimitive;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+
+// Form bodies for the Bot API calls made per conversation step and per channel post. Kept free of
+// Android types so the :benchmark module measures exactly what ships.
+public final class TelegramBodies {
+
+    // The preview keyboard never changes, so it is built once rather than per preview.
+    static final String PREVIEW_KEYBOARD = "{\"inline_keyboard\":[[{\"text\":\"🚀 Post Now\",\"callback_data\":\"post_now\"}], " +
+            "[{\"text\":\"⏰ Schedule\",\"callback_data\":\"schedule\"}]]}";
+    private static final String DOWNLOAD_KEYBOARD_HEAD = "{\"inline_keyboard\":[[{\"text\":\"📥 Download Movie 📥\",\"url\":";
+    private static final String DOWNLOAD_KEYBOARD_TAIL = "}]]}";
+
+    private TelegramBodies() {}
+
+    public static RequestBody message(long chatId, String text) {
+        return new MultipartBody.Builder().setType(MultipartBody.FORM)
+            .addFormDataPart("chat_id", String.valueOf(chatId))
+            .addFormDataPart("text", text)
+            .addFormDataPart("parse_mode", "HTML")
+            .build();
+    }
+
+    public static RequestBody editMessage(long chatId, long messageId, String text) {
+        return editMessage(chatId, messageId, text, true);
+    }
+
+    // A caption still streaming in can stop inside a tag, so live edits go out as plain text.
+    public static RequestBody editMessage(long chatId, long messageId, String text, boolean html) {
+        MultipartBody.Builder body = new MultipartBody.Builder().setType(MultipartBody.FORM)
+            .addFormDataPart("chat_id", String.valueOf(chatId))
+            .addFormDataPart("message_id", String.valueOf(messageId))
+            .addFormDataPart("text", text);
+        if (html) body.addFormDataPart("parse_mode", "HTML");
+        return body.build();
+    }
+
+    public static RequestBody deleteMessage(long chatId, long messageId) {
+        return new MultipartBody.Builder().setType(MultipartBody.FORM)
+            .addFormDataPart("chat_id", String.valueOf(chatId))
+            .addFormDataPart("message_id", String.valueOf(messageId))
+            .build();
+    }
+
+    // The admin's preview: poster, generated caption and the Post Now / Schedule buttons.
+    public static RequestBody preview(long chatId, String photoId, String caption) {
+        return new MultipartBody.Builder().setType(MultipartBody.FORM)
+            .addFormDataPart("chat_id", String.valueOf(chatId))
+            .addFormDataPart("photo", photoId)
+            .addFormDataPart("caption", caption)
+            .addFormDataPart("parse_mode", "HTML")
+            .addFormDataPart("reply_markup", PREVIEW_KEYBOARD)
+            .build();
+    }
+
+    // The channel post with its download button; the link is JSON-escaped into the keyboard.
+    public static RequestBody channelPost(String chat, String photoId, String caption, String link) {
+        return new MultipartBody.Builder().setType(MultipartBody.FORM)
+            .addFormDataPart("chat_id", chat)
+            .addFormDataPart("photo", photoId)
+            .addFormDataPart("caption", caption)
+            .addFormDataPart("parse_mode", "HTML")
+            .addFormDataPart("reply_markup", downloadKeyboard(link))
+            .build();
+    }
+
+    public static RequestBody callbackAnswer(String callbackId) {
+        return new MultipartBody.Builder().setType(MultipartBody.FORM)
+            .addFormDataPart("callback_query_id", callbackId)
+            .build();
+    }
+
+    static String downloadKeyboard(String link) {
+        return DOWNLOAD_KEYBOARD_HEAD + new JsonPrimitive(link == null ? "" : link) + DOWNLOAD_KEYBOARD_TAIL;
+    }
+}
@@ -0,0 +1,399 @@
+package com.mmchbot;
+
+import android.util.Log;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+// Outbound Telegram scheduler. Every Bot API call goes through here so that:
+//  - token buckets keep us under Telegram's global (~30 msg/s) and per-chat limits,
+//  - a 429 parks the chat for the retry_after Telegram asks for and re-queues the call,
+//  - callback answers overtake chat replies, which overtake bulk channel posts,
+//  - calls to the same chat leave in the order they were queued (one in flight per chat),
+//  - nothing leaves while NetworkMonitor says the network is down; the queue waits for it.
+public class TelegramSender {
+
+    public enum Priority { INTERACTIVE, CHAT, BULK }
+
+    private static final double GLOBAL_PER_SEC = 30;
+    private static final double PRIVATE_CHAT_PER_SEC = 1;
+    private static final double GROUP_CHAT_PER_SEC = 20 / 60.0;
+    private static final int CHAT_BURST = 3;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int MAX_THROTTLED_ATTEMPTS = 10;
+    private static final long RETRY_BASE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Safe to resend after a timeout or 5xx: repeating them cannot produce a duplicate post.
+    private static final Set<String> IDEMPOTENT = new HashSet<>(Arrays.asList(
+            "answerCallbackQuery", "editMessageText", "deleteMessage", "getFile"));
+
+    private static final Map<String, TelegramSender> SHARED = new HashMap<>();
+    // telegram.<method>_ms, resolved once per method rather than concatenated per call.
+    private static final Map<String, Metrics.Histogram> LATENCY = new ConcurrentHashMap<>();
+    private static final LongAdder THROTTLED = Metrics.counter("telegram.throttled");
+    private static final LongAdder RETRIES = Metrics.counter("telegram.retries");
+    private static final LongAdder FAILED = Metrics.counter("telegram.failed");
+
+    static {
+        Metrics.gauge("telegram.queued", TelegramSender::queuedAll);
+    }
+    // HTTP workers are shared by every bot's sender; each sender only adds its scheduler thread.
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(4, new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tg-send-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final OkHttpClient client;
+    private final String baseUrl;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final TreeSet<Job> queue = new TreeSet<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private final Map<String, TokenBucket> chatBuckets = new HashMap<>();
+    private final TokenBucket globalBucket = new TokenBucket(GLOBAL_PER_SEC, GLOBAL_PER_SEC);
+    private long globalPausedUntil = 0;
+    private long seq = 0;
+    private volatile boolean running = true;
+    // Whether this sender holds the wakelock for its queue: only while something can go out.
+    private boolean awake = false;
+
+    // One sender per bot token and endpoint per process, so BotService and AlarmReceiver share the
+    // same limits. apiBase is BotConfig.telegramApi ("https://api.telegram.org" unless overridden);
+    // a reload that changes it gets a sender for the new endpoint.
+    public static synchronized TelegramSender forToken(String apiBase, String token) {
+        String baseUrl = apiBase + "/bot" + token;
+        TelegramSender sender = SHARED.get(baseUrl);
+        if (sender == null) {
+            sender = new TelegramSender(Http.TELEGRAM, baseUrl);
+            SHARED.put(baseUrl, sender);
+        }
+        return sender;
+    }
+
+    // BotService drops a bot's sender when the bot is removed or moves to another telegram_api.
+    // Whatever is still queued on it completes with null, so outbox rows go back for a retry.
+    public static synchronized void release(String apiBase, String token) {
+        TelegramSender sender = SHARED.remove(apiBase + "/bot" + token);
+        if (sender != null) sender.shutdown();
+    }
+
+    public static synchronized void shutdownAll() {
+        for (TelegramSender sender : SHARED.values()) sender.shutdown();
+        SHARED.clear();
+    }
+
+    // baseUrl is "https://api.telegram.org/bot<token>" (or a local stand-in for tests).
+    public TelegramSender(OkHttpClient client, String baseUrl) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+        Thread scheduler = new Thread(this::runScheduler, "tg-scheduler");
+        scheduler.setDaemon(true);
+        scheduler.start();
+    }
+
+    // chatKey is the destination chat id/@username, or null for calls not bound to a chat
+    // (e.g. answerCallbackQuery). Completes with the response body, or null once it gives up.
+    public CompletableFuture<String> send(String method, String chatKey, Priority priority, RequestBody body) {
+        Job job = new Job(method, chatKey == null ? "" : chatKey, priority, body);
+        lock.lock();
+        try {
+            // A released sender has no scheduler left; don't leave the caller waiting on it.
+            if (!running) {
+                job.result.complete(null);
+                return job.result;
+            }
+            job.seq = seq++;
+            queue.add(job);
+            holdAwake(NetworkMonitor.isOnline());
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return job.result;
+    }
+
+    public int queued() {
+        lock.lock();
+        try { return queue.size(); } finally { lock.unlock(); }
+    }
+
+    private static synchronized long queuedAll() {
+        long total = 0;
+        for (TelegramSender sender : SHARED.values()) total += sender.queued();
+        return total;
+    }
+
+    // NetworkMonitor flipped: parked schedulers re-check at once instead of on their next timeout.
+    public static synchronized void networkChanged() {
+        for (TelegramSender sender : SHARED.values()) {
+            sender.lock.lock();
+            try {
+                sender.changed.signal();
+            } finally {
+                sender.lock.unlock();
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        lock.lock();
+        try {
+            for (Job job : queue) job.result.complete(null);
+            queue.clear();
+            holdAwake(false);
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- SCHEDULING ---
+
+    private void runScheduler() {
+        while (running) {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                long wait = TimeUnit.SECONDS.toNanos(5);
+                Job pick = null;
+                boolean online = NetworkMonitor.isOnline();
+                holdAwake(online && !queue.isEmpty());
+
+                if (!online) {
+                    // Parked until networkChanged(); the timeout is only a fallback.
+                } else if (globalPausedUntil > now) {
+                    wait = globalPausedUntil - now;
+                } else {
+                    Set<String> considered = new HashSet<>();
+                    for (Job job : queue) {
+                        // Only the oldest queued job of a chat is eligible, which keeps per-chat order.
+                        if (!considered.add(job.chatKey) && !job.chatKey.isEmpty()) continue;
+                        if (inFlight.contains(job.chatKey)) continue;
+                        if (job.notBefore > now) { wait = Math.min(wait, job.notBefore - now); continue; }
+                        long chatWait = job.chatKey.isEmpty() ? 0 : bucketFor(job.chatKey).waitNanos(now);
+                        if (chatWait > 0) { wait = Math.min(wait, chatWait); continue; }
+                        long globalWait = globalBucket.waitNanos(now);
+                        if (globalWait > 0) { wait = Math.min(wait, globalWait); break; }
+                        pick = job;
+                        break;
+                    }
+                }
+
+                if (pick == null) {
+                    changed.awaitNanos(wait);
+                    continue;
+                }
+                queue.remove(pick);
+                globalBucket.take(now);
+                if (!pick.chatKey.isEmpty()) {
+                    bucketFor(pick.chatKey).take(now);
+                    inFlight.add(pick.chatKey);
+                }
+                Job job = pick;
+                // Held until execute() finishes, whether or not the queue still holds the lock.
+                WakeScope.acquire();
+                WORKERS.execute(() -> execute(job));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.e("TelegramSender", "Scheduler error: " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Called with the lock held.
+    private void holdAwake(boolean busy) {
+        if (busy == awake) return;
+        awake = busy;
+        if (busy) WakeScope.acquire();
+        else WakeScope.release();
+    }
+
+    private void execute(Job job) {
+        try {
+            call(job);
+        } finally {
+            WakeScope.release();
+        }
+    }
+
+    private void call(Job job) {
+        long started = System.nanoTime();
+        job.attempts++;
+        Long retryAfterNanos = null;
+        boolean retry = false;
+        try {
+            Request request = new Request.Builder().url(baseUrl + "/" + job.method).post(job.body).build();
+            try (Response response = client.newCall(request).execute()) {
+                String body = response.body() != null ? response.body().string() : "";
+                LATENCY.computeIfAbsent(job.method, m -> Metrics.histogram("telegram." + m + "_ms"))
+                        .record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                if (response.isSuccessful()) {
+                    job.result.complete(body);
+                } else if (response.code() == 429) {
+                    // Telegram did not process the call, so it is always safe to send again.
+                    THROTTLED.increment();
+                    retryAfterNanos = TimeUnit.SECONDS.toNanos(retryAfterSeconds(body));
+                    retry = job.attempts < MAX_THROTTLED_ATTEMPTS;
+                } else if (response.code() >= 500) {
+                    retry = IDEMPOTENT.contains(job.method) && job.attempts < MAX_ATTEMPTS;
+                } else {
+                    Log.w("TelegramSender", job.method + " failed " + response.code() + ": " + body);
+                }
+            }
+        } catch (IOException e) {
+            retry = IDEMPOTENT.contains(job.method) && job.attempts < MAX_ATTEMPTS;
+            Log.w("TelegramSender", job.method + " I/O error: " + e.getMessage());
+        }
+
+        lock.lock();
+        try {
+            inFlight.remove(job.chatKey);
+            if (!job.result.isDone()) {
+                if (retry && running) {
+                    long now = System.nanoTime();
+                    if (retryAfterNanos != null) {
+                        // Chat-bound 429s park that chat; anything else means we hit the global limit.
+                        if (job.chatKey.isEmpty()) globalPausedUntil = now + retryAfterNanos;
+                        else bucketFor(job.chatKey).pauseUntil(now + retryAfterNanos);
+                        job.notBefore = now + retryAfterNanos;
+                    } else {
+                        job.notBefore = now + (RETRY_BASE_NANOS << Math.min(job.attempts - 1, 5));
+                    }
+                    RETRIES.increment();
+                    queue.add(job);
+                } else {
+                    FAILED.increment();
+                    job.result.complete(null);
+                }
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private TokenBucket bucketFor(String chatKey) {
+        TokenBucket bucket = chatBuckets.get(chatKey);
+        if (bucket == null) {
+            if (chatBuckets.size() > 1000) pruneIdleBuckets();
+            boolean group = chatKey.startsWith("-") || chatKey.startsWith("@");
+            bucket = new TokenBucket(group ? GROUP_CHAT_PER_SEC : PRIVATE_CHAT_PER_SEC, CHAT_BURST);
+            chatBuckets.put(chatKey, bucket);
+        }
+        return bucket;
+    }
+
+    private void pruneIdleBuckets() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, TokenBucket>> it = chatBuckets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, TokenBucket> e = it.next();
+            if (!inFlight.contains(e.getKey()) && e.getValue().isFull(now)) it.remove();
+        }
+    }
+
+    private static long retryAfterSeconds(String body) {
+        try {
+            JsonObject params = JsonParser.parseString(body).getAsJsonObject().getAsJsonObject("parameters");
+            if (params != null && params.has("retry_after")) return Math.max(1, params.get("retry_after").getAsLong());
+        } catch (Exception ignored) {}
+        return 5;
+    }
+
+    // --- INTERNALS ---
+
+    private static final class Job implements Comparable<Job> {
+        final String method;
+        final String chatKey;
+        final Priority priority;
+        final RequestBody body;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        long seq;
+        long notBefore;
+        int attempts;
+
+        Job(String method, String chatKey, Priority priority, RequestBody body) {
+            this.method = method;
+            this.chatKey = chatKey;
+            this.priority = priority;
+            this.body = body;
+        }
+
+        @Override
+        public int compareTo(Job o) {
+            int byPriority = priority.compareTo(o.priority);
+            return byPriority != 0 ? byPriority : Long.compare(seq, o.seq);
+        }
+    }
+
+    private static final class TokenBucket {
+        private final double perNano;
+        private final double capacity;
+        private double tokens;
+        private long last = System.nanoTime();
+        private long pausedUntil;
+
+        TokenBucket(double perSecond, double capacity) {
+            this.perNano = perSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        long waitNanos(long now) {
+            if (pausedUntil > now) return pausedUntil - now;
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+        }
+
+        void take(long now) {
+            refill(now);
+            tokens -= 1;
+        }
+
+        void pauseUntil(long until) {
+            pausedUntil = Math.max(pausedUntil, until);
+            tokens = 0;
+        }
+
+        boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity && pausedUntil <= now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - last) * perNano);
+            last = now;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.mmchbot;
+
+import java.util.List;
+
+// The parts of a Telegram update the bot acts on, decoded straight off the wire (see UpdateDecoder).
+public class Update {
+
+    public static final int OTHER = 0;
+    public static final int MESSAGE = 1;
+    public static final int CALLBACK = 2;
+
+    public long updateId;
+    public int kind = OTHER;
+    public long chatId;
+    public long fromId;         // the user who sent the message or pressed the button
+    public long date;
+    public String text;
+    public String caption;
+    public String mediaGroupId;
+
+    // Photo message: every size Telegram offers, smallest first.
+    public List<PhotoSize> photos;
+
+    // Image (or bulk CSV) sent as a file.
+    public String documentId;
+    public String documentUniqueId;
+    public String documentMime;
+    public String documentName;
+    public long documentSize;
+
+    public String callbackId;
+    public String callbackData;
+
+    public static class PhotoSize {
+        public String fileId;
+        public String uniqueId;
+        public int width;
+        public int height;
+        public long fileSize;
+    }
+}
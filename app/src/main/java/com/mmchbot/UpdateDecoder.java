@@ -0,0 +1,148 @@
+package com.mmchbot;
+
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+// Streaming decoder for getUpdates responses. Reads the body token by token into Update records
+// and skips every field the bot doesn't use, so a 100-update batch never exists as a JSON tree.
+public final class UpdateDecoder {
+
+    private UpdateDecoder() {}
+
+    // Hands each update to sink as soon as it is read; returns Telegram's "ok" flag.
+    public static boolean read(Reader in, Consumer<Update> sink) throws IOException {
+        JsonReader r = new JsonReader(in);
+        boolean ok = false;
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName()) {
+                case "ok": ok = r.nextBoolean(); break;
+                case "result":
+                    r.beginArray();
+                    while (r.hasNext()) sink.accept(readUpdate(r));
+                    r.endArray();
+                    break;
+                default: r.skipValue();
+            }
+        }
+        r.endObject();
+        return ok;
+    }
+
+    // A single Update object, as Telegram posts it to a webhook.
+    public static Update readOne(Reader in) throws IOException {
+        return readUpdate(new JsonReader(in));
+    }
+
+    private static Update readUpdate(JsonReader r) throws IOException {
+        Update u = new Update();
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName()) {
+                case "update_id": u.updateId = r.nextLong(); break;
+                case "message":
+                    u.kind = Update.MESSAGE;
+                    readMessage(r, u, true);
+                    break;
+                case "callback_query":
+                    u.kind = Update.CALLBACK;
+                    readCallback(r, u);
+                    break;
+                default: r.skipValue();
+            }
+        }
+        r.endObject();
+        return u;
+    }
+
+    // For a callback's message only the chat is needed; its text and media are skipped.
+    private static void readMessage(JsonReader r, Update u, boolean full) throws IOException {
+        r.beginObject();
+        while (r.hasNext()) {
+            String name = r.nextName();
+            if (name.equals("chat")) {
+                u.chatId = readId(r);
+            } else if (!full) {
+                r.skipValue();
+            } else {
+                switch (name) {
+                    case "from": u.fromId = readId(r); break;
+                    case "date": u.date = r.nextLong(); break;
+                    case "text": u.text = r.nextString(); break;
+                    case "caption": u.caption = r.nextString(); break;
+                    case "media_group_id": u.mediaGroupId = r.nextString(); break;
+                    case "photo": readPhotos(r, u); break;
+                    case "document": readDocument(r, u); break;
+                    default: r.skipValue();
+                }
+            }
+        }
+        r.endObject();
+    }
+
+    private static void readCallback(JsonReader r, Update u) throws IOException {
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName()) {
+                case "id": u.callbackId = r.nextString(); break;
+                case "data": u.callbackData = r.nextString(); break;
+                case "from": u.fromId = readId(r); break;
+                case "message": readMessage(r, u, false); break;
+                default: r.skipValue();
+            }
+        }
+        r.endObject();
+    }
+
+    // The "id" of a chat or user object.
+    private static long readId(JsonReader r) throws IOException {
+        long id = 0;
+        r.beginObject();
+        while (r.hasNext()) {
+            if (r.nextName().equals("id")) id = r.nextLong();
+            else r.skipValue();
+        }
+        r.endObject();
+        return id;
+    }
+
+    private static void readPhotos(JsonReader r, Update u) throws IOException {
+        u.photos = new ArrayList<>(4);
+        r.beginArray();
+        while (r.hasNext()) {
+            Update.PhotoSize size = new Update.PhotoSize();
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "file_id": size.fileId = r.nextString(); break;
+                    case "file_unique_id": size.uniqueId = r.nextString(); break;
+                    case "width": size.width = r.nextInt(); break;
+                    case "height": size.height = r.nextInt(); break;
+                    case "file_size": size.fileSize = r.nextLong(); break;
+                    default: r.skipValue();
+                }
+            }
+            r.endObject();
+            u.photos.add(size);
+        }
+        r.endArray();
+    }
+
+    private static void readDocument(JsonReader r, Update u) throws IOException {
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName()) {
+                case "file_id": u.documentId = r.nextString(); break;
+                case "file_unique_id": u.documentUniqueId = r.nextString(); break;
+                case "mime_type": u.documentMime = r.nextString(); break;
+                case "file_name": u.documentName = r.nextString(); break;
+                case "file_size": u.documentSize = r.nextLong(); break;
+                default: r.skipValue();
+            }
+        }
+        r.endObject();
+    }
+}
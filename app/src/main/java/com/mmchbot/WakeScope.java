@@ -0,0 +1,73 @@
+package com.mmchbot;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import java.util.concurrent.atomic.LongAdder;
+
+// The process's one partial wakelock, held only while there is work in flight (a dispatched
+// handler, a sendable Bot API call, an outbox drain, a poll response being journaled) instead of
+// for the life of the service. Holders nest: the lock is taken by the first acquire() and dropped
+// by the last release(), so the CPU may sleep while a long poll is parked (its response wakes the
+// device). Before init() it only counts, so code shared with AlarmReceiver can call it freely.
+public final class WakeScope {
+
+    // Safety net against a leaked holder. Re-armed while holders keep coming and going.
+    private static final long TIMEOUT_MS = 10 * 60 * 1000L;
+
+    private static final LongAdder WAKE_MS = Metrics.counter("power.wake_ms");
+    private static final long STARTED_AT = SystemClock.elapsedRealtime();
+
+    private static PowerManager.WakeLock lock;
+    private static int holders;
+    private static long heldSince;
+    private static long armedAt;
+
+    static {
+        Metrics.gauge("power.wake_holders", WakeScope::holders);
+        Metrics.gauge("power.wake_ms_per_hour", WakeScope::wakeMsPerHour);
+    }
+
+    private WakeScope() {}
+
+    public static synchronized void init(Context context) {
+        if (lock != null) return;
+        PowerManager pm = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+        lock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MMCHBot::WorkLock");
+        lock.setReferenceCounted(false);
+        if (holders > 0) arm(SystemClock.elapsedRealtime());
+    }
+
+    public static synchronized void acquire() {
+        long now = SystemClock.elapsedRealtime();
+        if (holders++ == 0) {
+            heldSince = now;
+            arm(now);
+        } else if (now - armedAt > TIMEOUT_MS / 2) {
+            arm(now);
+        }
+    }
+
+    public static synchronized void release() {
+        if (holders == 0) return;
+        if (--holders > 0) return;
+        WAKE_MS.add(SystemClock.elapsedRealtime() - heldSince);
+        if (lock != null && lock.isHeld()) lock.release();
+    }
+
+    private static void arm(long now) {
+        armedAt = now;
+        if (lock != null) lock.acquire(TIMEOUT_MS);
+    }
+
+    private static synchronized long holders() {
+        return holders;
+    }
+
+    // Time held per hour of process uptime (sleep included), counting the current hold.
+    private static synchronized long wakeMsPerHour() {
+        long now = SystemClock.elapsedRealtime();
+        long held = WAKE_MS.sum() + (holders > 0 ? now - heldSince : 0);
+        return held * 3_600_000L / Math.max(1, now - STARTED_AT);
+    }
+}
@@ -0,0 +1,288 @@
+package com.mmchbot;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Minimal HTTP/1.1 endpoint for push ingest: a relay (or reverse tunnel) forwards Telegram's
+// webhook calls to POST /telegram/<bot id>. The X-Telegram-Bot-Api-Secret-Token header must match
+// the bot's webhook_secret; the body is one Update, decoded and handed to the same dispatch path
+// the poll uses. Bodies may come with Content-Length or chunked. Binds to loopback by default, so
+// only a local tunnel endpoint can reach it.
+//   curl -H 'X-Telegram-Bot-Api-Secret-Token: s3cret' -d @update.json http://127.0.0.1:8088/telegram/123
+public class WebhookServer {
+
+    public interface Sink {
+        // Throws when the update could not be stored; the caller answers 503 so it is redelivered.
+        void ingest(Update update, long receivedAt) throws IOException;
+    }
+
+    private static final String SECRET_HEADER = "x-telegram-bot-api-secret-token";
+    private static final String PATH_PREFIX = "/telegram/";
+    private static final int MAX_BODY = 1024 * 1024;
+    private static final int MAX_HEADER_LINE = 8192;
+    private static final byte[] TOO_LARGE = new byte[0];
+    private static final int IDLE_TIMEOUT_MS = 30_000;
+    // A keep-alive connection holds its thread until it idles out, so there is one thread per open
+    // connection. Telegram opens up to 40 per bot (setWebhook max_connections); past this limit a
+    // connection is answered 503 and closed, and Telegram redelivers.
+    private static final int MAX_CONNECTIONS = 64;
+    private static final LongAdder REJECTED_CONNECTIONS = Metrics.counter("webhook.rejected_connections");
+    private static final LongAdder UNAUTHORIZED = Metrics.counter("webhook.unauthorized");
+    private static final LongAdder BAD_REQUESTS = Metrics.counter("webhook.bad_request");
+    private static final LongAdder UPDATES = Metrics.counter("webhook.updates");
+
+    private final Map<Long, Route> routes = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor handlers;
+    private final ServerSocket server;
+    private volatile boolean running = true;
+
+    public WebhookServer(String bindAddress, int port) throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(InetAddress.getByName(bindAddress), port));
+        AtomicInteger n = new AtomicInteger();
+        handlers = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "webhook-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Metrics.gauge("webhook.connections", handlers::getActiveCount);
+        Thread acceptor = new Thread(this::acceptLoop, "webhook-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.i("WebhookServer", "Listening on " + bindAddress + ":" + server.getLocalPort());
+    }
+
+    public void register(long botId, String secret, Sink sink) {
+        routes.put(botId, new Route(secret, sink));
+    }
+
+    public void unregister(long botId) {
+        routes.remove(botId);
+    }
+
+    public void close() {
+        running = false;
+        try { server.close(); } catch (IOException ignored) {}
+        handlers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                try {
+                    handlers.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    REJECTED_CONNECTIONS.increment();
+                    try (Socket s = socket) {
+                        respond(s.getOutputStream(), 503, "busy", true);
+                    }
+                }
+            } catch (IOException e) {
+                if (running) Log.w("WebhookServer", "Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Keep-alive loop: a relay usually reuses one connection for a stream of updates.
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(IDLE_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            while (running) {
+                String requestLine = readLine(in);
+                if (requestLine == null) return;
+                if (requestLine.isEmpty()) continue;
+                long receivedAt = SystemClock.elapsedRealtime();
+
+                int contentLength = -1;
+                boolean chunked = false;
+                String secret = null;
+                boolean close = false;
+                String header;
+                while ((header = readLine(in)) != null && !header.isEmpty()) {
+                    int colon = header.indexOf(':');
+                    if (colon <= 0) continue;
+                    String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                    String value = header.substring(colon + 1).trim();
+                    if (name.equals("content-length")) contentLength = Integer.parseInt(value);
+                    else if (name.equals("transfer-encoding")) chunked = value.toLowerCase(Locale.ROOT).endsWith("chunked");
+                    else if (name.equals(SECRET_HEADER)) secret = value;
+                    else if (name.equals("connection")) close = value.equalsIgnoreCase("close");
+                }
+                if (header == null) return;
+
+                String[] parts = requestLine.split(" ");
+                if (contentLength > MAX_BODY) {
+                    respond(out, 413, "too large", true);
+                    return;
+                }
+                byte[] body = chunked ? readChunked(in) : readBody(in, Math.max(0, contentLength));
+                if (body == null) return;
+                if (body == TOO_LARGE) {
+                    respond(out, 413, "too large", true);
+                    return;
+                }
+
+                int status = handle(parts, secret, body, receivedAt);
+                respond(out, status, status == 200 ? "ok" : "rejected", close);
+                if (close) return;
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection; the relay reconnects when it has more.
+        } catch (Exception e) {
+            Log.w("WebhookServer", "Connection error: " + e.getMessage());
+        }
+    }
+
+    private int handle(String[] requestLine, String secret, byte[] body, long receivedAt) {
+        if (requestLine.length < 2 || !requestLine[0].equals("POST")) return 405;
+        String path = requestLine[1];
+        if (!path.startsWith(PATH_PREFIX)) return 404;
+        Route route;
+        try {
+            route = routes.get(Long.parseLong(path.substring(PATH_PREFIX.length())));
+        } catch (NumberFormatException e) {
+            return 404;
+        }
+        if (route == null) return 404;
+        if (!route.accepts(secret)) {
+            UNAUTHORIZED.increment();
+            return 401;
+        }
+        Update update;
+        try {
+            update = UpdateDecoder.readOne(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            BAD_REQUESTS.increment();
+            return 400;
+        }
+        UPDATES.increment();
+        try {
+            route.sink.ingest(update, receivedAt);
+            return 200;
+        } catch (IOException e) {
+            Log.w("WebhookServer", "Ingest failed: " + e.getMessage());
+            return 503;
+        }
+    }
+
+    private static byte[] readBody(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) return null;
+            read += n;
+        }
+        return body;
+    }
+
+    // Chunk sizes are hex, optionally followed by ";extensions"; trailers after the last chunk are
+    // skipped. Returns TOO_LARGE as soon as the body would pass MAX_BODY, null at end of stream.
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String line = readLine(in);
+            if (line == null) return null;
+            int semicolon = line.indexOf(';');
+            int size;
+            try {
+                size = Integer.parseInt((semicolon >= 0 ? line.substring(0, semicolon) : line).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size: " + line);
+            }
+            if (size < 0) throw new IOException("Bad chunk size: " + line);
+            if (size == 0) break;
+            if (body.size() + (long) size > MAX_BODY) return TOO_LARGE;
+            byte[] chunk = readBody(in, size);
+            if (chunk == null) return null;
+            body.write(chunk);
+            if (readLine(in) == null) return null;
+        }
+        String trailer;
+        while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {}
+        return trailer == null ? null : body.toByteArray();
+    }
+
+    // Header lines are ASCII; returns null at end of stream.
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_HEADER_LINE) throw new IOException("Header line too long");
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void respond(OutputStream out, int status, String text, boolean close) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + " " + reason(status) + "\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Content-Length: " + body.length + "\r\n" +
+            (close ? "Connection: close\r\n" : "") + "\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 413: return "Payload Too Large";
+            case 503: return "Service Unavailable";
+            default: return "Error";
+        }
+    }
+
+    private static final class Route {
+        final byte[] secret;
+        final Sink sink;
+
+        Route(String secret, Sink sink) {
+            this.secret = secret != null ? secret.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            this.sink = sink;
+        }
+
+        // An empty webhook_secret rejects everything rather than accepting anyone.
+        boolean accepts(String header) {
+            return secret.length > 0 && header != null
+                && MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.mmchbot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+// 10k conversation-step transitions (read the session, write the next step) against the
+// original open-per-call BotDatabase and the pooled WAL connection with compiled statements.
+// Logs per-transition p50/p99/mean. Skipped unless asked for, since it is slow:
+//   ./gradlew :app:testDebugUnitTest --tests com.mmchbot.BotDatabaseBenchmark -Dbenchmarks=true -Drobolectric.logging=stdout
+@RunWith(RobolectricTestRunner.class)
+public class BotDatabaseBenchmark {
+
+    private static final int TRANSITIONS = 10_000;
+    private static final int CHATS = 50;
+    private static final int WARMUP = 500;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        assumeTrue("benchmark; run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        context = RuntimeEnvironment.getApplication();
+        BotDatabase.reset();
+    }
+
+    @After
+    public void tearDown() {
+        BotDatabase.reset();
+    }
+
+    @Test
+    public void openPerCallVersusPooled() {
+        LegacyDatabase legacy = new LegacyDatabase(context);
+        Metrics.Histogram before = new Metrics.Histogram();
+        for (int i = 0; i < WARMUP + TRANSITIONS; i++) {
+            long chatId = i % CHATS;
+            long started = System.nanoTime();
+            int step = legacy.getStep(chatId);
+            Map<String, String> data = legacy.getData(chatId);
+            data.put("name", "Movie " + i);
+            legacy.saveState(chatId, (step + 1) % 4, data);
+            if (i >= WARMUP) before.record((System.nanoTime() - started) / 1000);
+        }
+
+        BotDatabase db = BotDatabase.getInstance(context);
+        Metrics.Histogram after = new Metrics.Histogram();
+        for (int i = 0; i < WARMUP + TRANSITIONS; i++) {
+            long chatId = i % CHATS;
+            long started = System.nanoTime();
+            Session session = db.getSession(1, chatId);
+            session.step = (session.step + 1) % 4;
+            session.name = "Movie " + i;
+            db.saveStates(Collections.singletonMap(new SessionCache.Key(1, chatId), session), Collections.emptyMap());
+            if (i >= WARMUP) after.record((System.nanoTime() - started) / 1000);
+        }
+
+        Log.i("BotDatabaseBenchmark", TRANSITIONS + " transitions (us p50/p99/mean): open per call "
+            + before.percentile(50) + "/" + before.percentile(99) + "/" + before.mean()
+            + ", pooled WAL " + after.percentile(50) + "/" + after.percentile(99) + "/" + after.mean());
+
+        // Both did the same work: every chat went around the 4-step cycle the same number of times.
+        int expectedStep = ((WARMUP + TRANSITIONS) / CHATS) % 4;
+        assertEquals(expectedStep, legacy.getStep(0));
+        assertEquals(expectedStep, db.getSession(1, 0).step);
+        legacy.close();
+    }
+
+    // The BotDatabase this replaced: a new connection per call and a JSON blob per chat.
+    private static final class LegacyDatabase extends SQLiteOpenHelper {
+        LegacyDatabase(Context context) {
+            super(context, "legacy_bench.db", null, 1);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE user_states (chat_id INTEGER PRIMARY KEY, step INTEGER, data_json TEXT)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldV, int newV) {}
+
+        void saveState(long chatId, int step, Map<String, String> data) {
+            SQLiteDatabase db = getWritableDatabase();
+            ContentValues values = new ContentValues();
+            values.put("chat_id", chatId);
+            values.put("step", step);
+            values.put("data_json", new Gson().toJson(data));
+            db.insertWithOnConflict("user_states", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            db.close();
+        }
+
+        int getStep(long chatId) {
+            int step = 0;
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor cursor = db.query("user_states", new String[]{"step"}, "chat_id=?", new String[]{String.valueOf(chatId)}, null, null, null);
+            if (cursor.moveToFirst()) step = cursor.getInt(0);
+            cursor.close();
+            db.close();
+            return step;
+        }
+
+        Map<String, String> getData(long chatId) {
+            Map<String, String> data = new HashMap<>();
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor cursor = db.query("user_states", new String[]{"data_json"}, "chat_id=?", new String[]{String.valueOf(chatId)}, null, null, null);
+            if (cursor.moveToFirst()) data = new Gson().fromJson(cursor.getString(0), new TypeToken<Map<String, String>>(){}.getType());
+            cursor.close();
+            db.close();
+            return data;
+        }
+    }
+}
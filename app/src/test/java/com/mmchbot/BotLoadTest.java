@@ -0,0 +1,328 @@
+package com.mmchbot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import java.io.File;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+// End-to-end load: N admins each run photo -> name -> link -> Post Now against local stand-ins
+// for the Bot API and Gemini, with latency and 429s injected. Everything between the two is the
+// real bot: long poll, journal, dispatcher and io lanes, speculation, TelegramSender, outbox.
+// Prints posts/min, photo-to-channel-post p50/p99, heap high-water mark and peak thread count.
+// Sized by system properties; run alone with
+//   ./gradlew :app:testDebugUnitTest --tests com.mmchbot.BotLoadTest -Dload.admins=50 -Dload.rounds=5
+@RunWith(RobolectricTestRunner.class)
+public class BotLoadTest {
+
+    private static final int ADMINS = Integer.getInteger("load.admins", 8);
+    private static final int ROUNDS = Integer.getInteger("load.rounds", 3);
+    private static final int TELEGRAM_LATENCY_MS = Integer.getInteger("load.telegram_ms", 20);
+    private static final int GEMINI_LATENCY_MS = Integer.getInteger("load.gemini_ms", 300);
+    // Every Nth sendMessage/sendPhoto is answered 429 retry_after 1; 0 turns throttling off.
+    private static final int THROTTLE_EVERY = Integer.getInteger("load.throttle_every", 15);
+    private static final int POSTER_BYTES = 60 * 1024;
+
+    private static final String TOKEN = "123456:LOAD";
+    private static final String CHANNEL = "@loadtest";
+    private static final long FIRST_ADMIN = 1000;
+
+    private final TelegramStandIn telegram = new TelegramStandIn();
+    private final MockWebServer telegramServer = new MockWebServer();
+    private final MockWebServer geminiServer = new MockWebServer();
+    private final List<Admin> admins = new ArrayList<>();
+    private final CountDownLatch finished = new CountDownLatch(ADMINS);
+    private final Metrics.Histogram latency = new Metrics.Histogram();
+
+    private Context context;
+    private KeyedDispatcher dispatcher;
+    private KeyedDispatcher io;
+    private SessionCache sessions;
+    private BotInstance bot;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        BotDatabase.reset();
+        OutboxWorker.reset();
+        ConfigStore.reset();
+
+        telegramServer.setDispatcher(telegram);
+        telegramServer.start();
+        geminiServer.setDispatcher(new GeminiStandIn());
+        geminiServer.start();
+
+        StringBuilder adminIds = new StringBuilder();
+        for (int i = 0; i < ADMINS; i++) {
+            admins.add(new Admin(FIRST_ADMIN + i));
+            adminIds.append(i == 0 ? "" : ",").append(FIRST_ADMIN + i);
+        }
+        // OutboxWorker finds the Bot API through ConfigStore, so the stand-ins go into settings.json.
+        String settings = "{\"token\":\"" + TOKEN + "\",\"channel\":\"" + CHANNEL + "\",\"gemini\":\"KEY\"," +
+            "\"model\":\"gemini-load\",\"admins\":\"" + adminIds + "\"," +
+            "\"telegram_api\":\"" + telegramServer.url("/").toString() + "\"," +
+            "\"gemini_api\":\"" + geminiServer.url("/models").toString() + "\"}";
+        Files.write(new File(context.getFilesDir(), BotConfig.SETTINGS_FILE).toPath(), settings.getBytes(StandardCharsets.UTF_8));
+        BotConfig config = BotConfig.parse(new StringReader(settings)).get(0);
+
+        BotDatabase db = BotDatabase.getInstance(context);
+        dispatcher = new KeyedDispatcher("dispatch", 4, 256);
+        io = new KeyedDispatcher("io", 8, 1024);
+        sessions = new SessionCache(db);
+        GeminiClient gemini = new GeminiClient(Http.GEMINI, config.geminiApi, config.geminiKey,
+            Collections.singletonList(config.model));
+        bot = new BotInstance(context, config, dispatcher, io, sessions, new CaptionCache(db), gemini, OutboxWorker.get(context));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (bot != null) bot.stop();
+        telegram.close();
+        dispatcher.shutdown();
+        io.shutdown();
+        sessions.close();
+        telegramServer.shutdown();
+        geminiServer.shutdown();
+        OutboxWorker.reset();
+        ConfigStore.reset();
+        BotDatabase.reset();
+    }
+
+    @Test
+    public void adminsPublishUnderLoad() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+
+        long started = System.nanoTime();
+        bot.start();
+        for (Admin admin : admins) admin.nextRound();
+        boolean done = finished.await(ADMINS * ROUNDS * 5L + 60, TimeUnit.SECONDS);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        heap.interrupt();
+        heap.join();
+
+        int posts = telegram.channelPosts.get();
+        System.out.println("Load: " + ADMINS + " admins x " + ROUNDS + " rounds, Telegram +" + TELEGRAM_LATENCY_MS +
+            " ms (429 every " + THROTTLE_EVERY + "), Gemini +" + GEMINI_LATENCY_MS + " ms");
+        System.out.println("  posts:           " + posts + " in " + elapsedMs + " ms = " + posts * 60_000L / Math.max(1, elapsedMs) + " posts/min");
+        System.out.println("  photo -> post:   p50 " + latency.percentile(50) + " ms, p99 " + latency.percentile(99) +
+            " ms, max " + latency.max() + " ms");
+        System.out.println("  heap high-water: " + heap.highWater / (1024 * 1024) + " MB");
+        System.out.println("  threads:         peak " + threads.getPeakThreadCount() + ", now " + threads.getThreadCount());
+        System.out.println("  telegram:        " + telegram.calls + ", 429s " + telegram.throttled.get());
+
+        assertTrue("only " + posts + " of " + ADMINS * ROUNDS + " posts arrived", done);
+        assertEquals(ADMINS * ROUNDS, posts);
+        // Each poster reached the channel once, throttling and retries notwithstanding.
+        assertEquals(ADMINS * ROUNDS, telegram.postedPhotos.size());
+        if (THROTTLE_EVERY > 0) assertTrue(telegram.throttled.get() > 0);
+    }
+
+    // One admin chat: reacts to what the bot sends it and starts the next round when its post
+    // shows up in the channel.
+    private final class Admin {
+        final long id;
+        int round;
+        long roundStartedAt;
+
+        Admin(long id) {
+            this.id = id;
+        }
+
+        synchronized void nextRound() {
+            if (round == ROUNDS) {
+                finished.countDown();
+                return;
+            }
+            round++;
+            roundStartedAt = System.nanoTime();
+            String poster = id + "-" + round;
+            telegram.push("\"message\":{\"message_id\":1,\"from\":{\"id\":" + id + "},\"chat\":{\"id\":" + id +
+                ",\"type\":\"private\"},\"date\":" + System.currentTimeMillis() / 1000 + ",\"photo\":[" +
+                "{\"file_id\":\"thumb-" + poster + "\",\"file_unique_id\":\"t" + poster + "\",\"width\":240,\"height\":320,\"file_size\":9000}," +
+                "{\"file_id\":\"poster-" + poster + "\",\"file_unique_id\":\"u" + poster + "\",\"width\":960,\"height\":1280," +
+                "\"file_size\":" + POSTER_BYTES + "}]}");
+        }
+
+        synchronized void onBotMessage(String method, String text) {
+            if (method.equals("sendMessage") && text.contains("Movie Name")) {
+                say("Movie " + id + " part " + round);
+            } else if (method.equals("sendMessage") && text.contains("Download Link")) {
+                say("https://example.com/d/" + id + "/" + round);
+            } else if (method.equals("sendPhoto")) {
+                // The preview: press Post Now.
+                telegram.push("\"callback_query\":{\"id\":\"cb" + id + "-" + round + "\",\"from\":{\"id\":" + id + "}," +
+                    "\"data\":\"post_now\",\"message\":{\"message_id\":2,\"chat\":{\"id\":" + id + "}}}");
+            }
+        }
+
+        void onPosted() {
+            long ms;
+            synchronized (this) {
+                ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStartedAt);
+            }
+            latency.record(ms);
+            nextRound();
+        }
+
+        private void say(String text) {
+            telegram.push("\"message\":{\"message_id\":1,\"from\":{\"id\":" + id + "},\"chat\":{\"id\":" + id +
+                ",\"type\":\"private\"},\"date\":" + System.currentTimeMillis() / 1000 + ",\"text\":" +
+                new com.google.gson.JsonPrimitive(text) + "}");
+        }
+    }
+
+    // The Bot API: a long-polled update queue fed by the admins, files, and the send methods.
+    private final class TelegramStandIn extends Dispatcher {
+        final List<String> updates = new ArrayList<>();
+        final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        final Set<String> postedPhotos = Collections.synchronizedSet(new HashSet<>());
+        final AtomicInteger channelPosts = new AtomicInteger();
+        final AtomicInteger throttled = new AtomicInteger();
+        final AtomicInteger sends = new AtomicInteger();
+        final AtomicLong messageIds = new AtomicLong();
+        final byte[] poster = new byte[POSTER_BYTES];
+        boolean closed;
+
+        TelegramStandIn() {
+            new Random(7).nextBytes(poster);
+        }
+
+        synchronized void push(String body) {
+            updates.add("{\"update_id\":" + (updates.size() + 1) + "," + body + "}");
+            notifyAll();
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            String path = request.getPath();
+            String method = path.substring(path.lastIndexOf('/') + 1).split("\\?")[0];
+            if (path.startsWith("/file/")) return new MockResponse().setBody(new Buffer().write(poster));
+            calls.computeIfAbsent(method, m -> new AtomicInteger()).incrementAndGet();
+            if (method.equals("getUpdates")) return getUpdates(Long.parseLong(request.getRequestUrl().queryParameter("offset")));
+            if (method.equals("getFile")) {
+                String fileId = request.getRequestUrl().queryParameter("file_id");
+                return ok("{\"file_id\":\"" + fileId + "\",\"file_path\":\"photos/" + fileId + ".jpg\"}");
+            }
+
+            String body = request.getBody().readUtf8();
+            if ((method.equals("sendMessage") || method.equals("sendPhoto"))
+                    && THROTTLE_EVERY > 0 && sends.incrementAndGet() % THROTTLE_EVERY == 0) {
+                throttled.incrementAndGet();
+                return new MockResponse().setResponseCode(429).setBody("{\"ok\":false,\"error_code\":429," +
+                    "\"description\":\"Too Many Requests: retry after 1\",\"parameters\":{\"retry_after\":1}}");
+            }
+            String chat = field(body, "chat_id");
+            if (method.equals("sendPhoto") && CHANNEL.equals(chat)) {
+                String photo = field(body, "photo");
+                postedPhotos.add(photo);
+                channelPosts.incrementAndGet();
+                String poster = photo.substring("poster-".length());
+                admins.get((int) (Long.parseLong(poster.substring(0, poster.indexOf('-'))) - FIRST_ADMIN)).onPosted();
+            } else if (chat != null && !chat.startsWith("@")) {
+                long adminId = Long.parseLong(chat);
+                String text = method.equals("sendPhoto") ? field(body, "caption") : field(body, "text");
+                admins.get((int) (adminId - FIRST_ADMIN)).onBotMessage(method, text == null ? "" : text);
+            }
+            return ok("{\"message_id\":" + messageIds.incrementAndGet() + "}").setHeadersDelay(TELEGRAM_LATENCY_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // Holds the request until there is something at or past offset, like Telegram does, but
+        // only briefly so shutdown is quick.
+        private synchronized MockResponse getUpdates(long offset) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (!closed && updates.size() < offset) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) break;
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            StringBuilder result = new StringBuilder("[");
+            for (int i = (int) Math.max(0, offset - 1); i < updates.size(); i++) {
+                result.append(result.length() > 1 ? "," : "").append(updates.get(i));
+            }
+            return ok(result.append(']').toString());
+        }
+    }
+
+    // streamGenerateContent: a short caption after a fixed think time.
+    private static final class GeminiStandIn extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            return new MockResponse()
+                .setHeader("Content-Type", "text/event-stream")
+                .setHeadersDelay(GEMINI_LATENCY_MS, TimeUnit.MILLISECONDS)
+                .setBody("data: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"🎬 <b>Load Test</b>\\n⭐ 8.1/10\"}]}}]}\n\n");
+        }
+    }
+
+    // Used heap, sampled; the high-water mark is what the run needed at its busiest.
+    private static final class HeapSampler extends Thread {
+        volatile long highWater;
+
+        HeapSampler() {
+            super("heap-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                highWater = Math.max(highWater, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static MockResponse ok(String result) {
+        return new MockResponse().setBody("{\"ok\":true,\"result\":" + result + "}");
+    }
+
+    // One part of a multipart/form-data body (TelegramBodies).
+    private static String field(String body, String name) {
+        int at = body.indexOf("name=\"" + name + "\"");
+        if (at < 0) return null;
+        int start = body.indexOf("\r\n\r\n", at) + 4;
+        int end = body.indexOf("\r\n--", start);
+        return body.substring(start, end);
+    }
+}
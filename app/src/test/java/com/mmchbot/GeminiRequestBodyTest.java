@@ -0,0 +1,106 @@
+package com.mmchbot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.lang.management.ManagementFactory;
+import java.util.Base64;
+import java.util.Random;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// The poster goes from the download body through the Base64 encoder into the request body
+// without ever being held whole: what this thread allocates must not grow with the image.
+public class GeminiRequestBodyTest {
+
+    private static final int LARGE_IMAGE = 8 * 1024 * 1024;
+    private static final long ALLOCATION_BUDGET = 1024 * 1024;
+
+    private final MockWebServer server = new MockWebServer();
+    private final OkHttpClient client = new OkHttpClient();
+
+    @Before
+    public void setUp() throws Exception {
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void envelopeAndImageRoundTrip() throws Exception {
+        byte[] image = fixture(100 * 1024);
+        server.enqueue(new MockResponse().setBody(new Buffer().write(image)));
+
+        Buffer out = new Buffer();
+        try (Response download = client.newCall(new Request.Builder().url(server.url("/file/poster.jpg")).build()).execute()) {
+            new GeminiRequestBody("Describe \"Interstellar\"\n", "image/jpeg", download.body().source()).writeTo(out);
+        }
+
+        JsonObject part = JsonParser.parseString(out.readUtf8()).getAsJsonObject()
+            .getAsJsonArray("contents").get(0).getAsJsonObject().getAsJsonArray("parts").get(1).getAsJsonObject()
+            .getAsJsonObject("inline_data");
+        assertEquals("image/jpeg", part.get("mime_type").getAsString());
+        assertArrayEquals(image, Base64.getDecoder().decode(part.get("data").getAsString()));
+    }
+
+    @Test
+    public void largeImageStreamsWithBoundedAllocation() throws Exception {
+        byte[] image = fixture(LARGE_IMAGE);
+        server.enqueue(new MockResponse().setBody(new Buffer().write(image)));
+        CountingSink counted = new CountingSink();
+        BufferedSink sink = Okio.buffer(counted);
+
+        try (Response download = client.newCall(new Request.Builder().url(server.url("/file/poster.jpg")).build()).execute()) {
+            GeminiRequestBody body = new GeminiRequestBody("Describe the poster", "image/jpeg", download.body().source());
+            long before = allocatedBytes();
+            body.writeTo(sink);
+            sink.flush();
+            long allocated = allocatedBytes() - before;
+            assertTrue("allocated " + allocated + " bytes for a " + LARGE_IMAGE + " byte image", allocated < ALLOCATION_BUDGET);
+        }
+        long base64 = (LARGE_IMAGE + 2) / 3 * 4L;
+        assertTrue(counted.bytes > base64 && counted.bytes < base64 + 200);
+    }
+
+    private static byte[] fixture(int size) {
+        byte[] bytes = new byte[size];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Discards what it is given and counts it, like a socket that never backs up.
+    private static final class CountingSink extends ForwardingSink {
+        long bytes;
+
+        CountingSink() {
+            super(Okio.blackhole());
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws java.io.IOException {
+            bytes += byteCount;
+            super.write(source, byteCount);
+        }
+    }
+}
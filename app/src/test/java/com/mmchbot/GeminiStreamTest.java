@@ -0,0 +1,117 @@
+package com.mmchbot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+// :streamGenerateContent?alt=sse against a local stand-in that trickles its events out.
+@RunWith(RobolectricTestRunner.class)
+public class GeminiStreamTest {
+
+    private final MockWebServer server = new MockWebServer();
+
+    @Before
+    public void setUp() throws Exception {
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void textArrivesWhileTheResponseIsStillStreaming() throws Exception {
+        String body = event("🎬 <b>Interstellar</b>") + event(" (2014)\n") + event("🌟 Rating: 8.7") + event(" | Sci-Fi");
+        // One event roughly every 400 ms, like a model producing a long caption.
+        server.enqueue(new MockResponse()
+            .setHeader("Content-Type", "text/event-stream")
+            .setBody(body)
+            .throttleBody(body.length() / 4 + 1, 400, TimeUnit.MILLISECONDS));
+
+        GeminiClient client = new GeminiClient(new OkHttpClient(), server.url("/models").toString(), "KEY",
+            Collections.singletonList("gemini-test"));
+        List<String> seen = new ArrayList<>();
+        List<Long> seenAt = new ArrayList<>();
+        long started = System.nanoTime();
+        GeminiClient.Caption caption = client.generate("Describe {name}", "image/jpeg", ByteString.encodeUtf8("jpeg"), soFar -> {
+            seen.add(soFar.toString());
+            seenAt.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        });
+        long totalMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertEquals("🎬 <b>Interstellar</b> (2014)\n🌟 Rating: 8.7 | Sci-Fi", caption.text);
+        assertEquals("gemini-test", caption.model);
+        assertTrue(seen.toString(), seen.size() >= 3);
+        for (int i = 1; i < seen.size(); i++) assertTrue(seen.get(i).startsWith(seen.get(i - 1)));
+        assertTrue("first text after " + seenAt.get(0) + " of " + totalMs + " ms", seenAt.get(0) < 1000 && seenAt.get(0) < totalMs / 2);
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("/models/gemini-test:streamGenerateContent?alt=sse&key=KEY", request.getPath());
+    }
+
+    @Test
+    public void fallbackCaptionIsReportedUnderItsOwnModel() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setHeader("Content-Type", "text/event-stream").setBody(event("From the backup")));
+
+        GeminiClient client = new GeminiClient(new OkHttpClient(), server.url("/models").toString(), "KEY",
+            Arrays.asList("gemini-primary", "gemini-backup"));
+        GeminiClient.Caption caption = client.generate("Describe {name}", "image/jpeg", ByteString.encodeUtf8("jpeg"), null);
+
+        assertEquals("From the backup", caption.text);
+        assertEquals("gemini-backup", caption.model);
+    }
+
+    @Test
+    public void multiLineEventsAndUsageAreParsed() throws Exception {
+        Buffer sse = new Buffer().writeUtf8(
+            "data: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"Hello\"}]}}],\n" +
+            "data: \"usageMetadata\":{\"promptTokenCount\":258,\"candidatesTokenCount\":1}}\n\n" +
+            ": keep-alive comment\n\n" +
+            "data:{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\", world\"}]}}]," +
+            "\"usageMetadata\":{\"promptTokenCount\":258,\"candidatesTokenCount\":3}}\n\n" +
+            "data: [DONE]\n\n");
+        GeminiStream.Usage usage = new GeminiStream.Usage();
+        List<String> seen = new ArrayList<>();
+
+        assertEquals("Hello, world", GeminiStream.read(sse, soFar -> seen.add(soFar.toString()), usage));
+        assertEquals(2, seen.size());
+        assertEquals(258, usage.promptTokens);
+        assertEquals(3, usage.outputTokens);
+    }
+
+    @Test
+    public void blockedPromptIsAnError() throws Exception {
+        Buffer sse = new Buffer().writeUtf8("data: {\"promptFeedback\":{\"blockReason\":\"SAFETY\"}}\n\n");
+        try {
+            GeminiStream.read(sse, null, new GeminiStream.Usage());
+            fail("blocked prompt returned text");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("SAFETY"));
+        }
+    }
+
+    private static String event(String text) {
+        return "data: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":" +
+            new com.google.gson.JsonPrimitive(text) + "}]}}]}\n\n";
+    }
+}
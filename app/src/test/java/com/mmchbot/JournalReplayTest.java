@@ -0,0 +1,280 @@
+package com.mmchbot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+// The process dies part-way through a getUpdates batch: some handlers committed with a session
+// flush, the rest never did. After a restart the offset must not ask Telegram for the batch again,
+// and the journal must hand back exactly the uncommitted updates, so every update is applied once.
+@RunWith(RobolectricTestRunner.class)
+public class JournalReplayTest {
+
+    private static final long BOT = 1;
+    private static final long CHAT_A = 42, CHAT_B = 43;
+    private static final String TOKEN = "777:REPLAY";
+    private static final long ADMIN = 1000;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        BotDatabase.reset();
+    }
+
+    @After
+    public void tearDown() {
+        OutboxWorker.reset();
+        ConfigStore.reset();
+        BotDatabase.reset();
+    }
+
+    @Test
+    public void killMidBatchReplaysOnlyUncommittedUpdates() {
+        List<Update> batch = new ArrayList<>();
+        for (long id = 101; id <= 106; id++) batch.add(update(id, id % 2 == 0 ? CHAT_A : CHAT_B));
+
+        BotDatabase db = BotDatabase.getInstance(context);
+        assertTrue(db.journalUpdates(BOT, batch, 106));
+        // 101..103 finish and are flushed; 104..106 are still on their lanes when the process is
+        // killed. Nothing is dirty by then, so closing the cache writes nothing more.
+        SessionCache sessions = new SessionCache(db);
+        for (Update update : batch.subList(0, 3)) handle(sessions.forBot(BOT), update);
+        sessions.flush();
+        sessions.close();
+        BotDatabase.reset();
+
+        BotDatabase restarted = BotDatabase.getInstance(context);
+        assertEquals(106, restarted.getUpdateOffset(BOT));
+        List<Long> pending = new ArrayList<>();
+        for (Update update : restarted.pendingUpdates(BOT)) pending.add(update.updateId);
+        assertEquals(Arrays.asList(104L, 105L, 106L), pending);
+        assertEquals(CHAT_A, restarted.pendingUpdates(BOT).get(0).chatId);
+
+        SessionCache replayed = new SessionCache(restarted);
+        try {
+            for (Update update : restarted.pendingUpdates(BOT)) handle(replayed.forBot(BOT), update);
+            replayed.flush();
+        } finally {
+            replayed.close();
+        }
+
+        assertTrue(restarted.pendingUpdates(BOT).isEmpty());
+        // Each chat saw each of its updates exactly once, in order.
+        assertEquals(" 102 104 106", restarted.getSession(BOT, CHAT_A).name);
+        assertEquals(3, restarted.getSession(BOT, CHAT_A).step);
+        assertEquals(" 101 103 105", restarted.getSession(BOT, CHAT_B).name);
+        assertEquals(3, restarted.getSession(BOT, CHAT_B).step);
+    }
+
+    // The same, through a real BotInstance: the process dies after the link's handler has returned
+    // but while its caption is still streaming. The link must come back from the journal, and the
+    // restarted bot must finish what the dead one started.
+    @Test
+    public void killWhileCaptionIsInFlightReplaysTheLink() throws Exception {
+        TelegramStandIn telegram = new TelegramStandIn();
+        MockWebServer telegramServer = new MockWebServer();
+        telegramServer.setDispatcher(telegram);
+        CountDownLatch captionAsked = new CountDownLatch(1);
+        MockWebServer hungGemini = new MockWebServer();
+        hungGemini.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                captionAsked.countDown();
+                return new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE);
+            }
+        });
+        MockWebServer gemini = new MockWebServer();
+        gemini.enqueue(new MockResponse().setHeader("Content-Type", "text/event-stream")
+            .setBody("data: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"🎬 Replayed\"}]}}]}\n\n"));
+        Bot first = null;
+        Bot second = null;
+        try {
+            telegramServer.start();
+            hungGemini.start();
+            gemini.start();
+            BotConfig config = config(telegramServer, hungGemini);
+
+            first = new Bot(config);
+            telegram.push(1, "\"photo\":[{\"file_id\":\"poster\",\"file_unique_id\":\"u1\",\"width\":960,\"height\":1280,\"file_size\":60000}]");
+            telegram.awaitSent("Movie Name");
+            telegram.push(2, "\"text\":\"Interstellar\"");
+            telegram.awaitSent("Download Link");
+            telegram.push(3, "\"text\":\"https://example.com/d\"");
+            assertTrue(captionAsked.await(10, TimeUnit.SECONDS));
+            telegram.awaitSent("Vision AI");
+            // The link's handler has returned; only its caption is left. A write-behind flush lands
+            // just before the kill, the worst moment for the journal.
+            first.kill();
+            first = null;
+
+            BotDatabase restarted = BotDatabase.getInstance(context);
+            long botId = config.botId;
+            assertEquals(3, restarted.getUpdateOffset(botId));
+            List<Long> pending = new ArrayList<>();
+            for (Update update : restarted.pendingUpdates(botId)) pending.add(update.updateId);
+            assertEquals(Collections.singletonList(3L), pending);
+
+            second = new Bot(config(telegramServer, gemini));
+            telegram.awaitSent("🎬 Replayed");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!restarted.pendingUpdates(botId).isEmpty() && System.nanoTime() < deadline) {
+                second.sessions.flush();
+                Thread.sleep(50);
+            }
+            assertTrue(restarted.pendingUpdates(botId).isEmpty());
+            Session session = restarted.getSession(botId, ADMIN);
+            assertEquals("https://example.com/d", session.link);
+            assertEquals("🎬 Replayed", session.desc);
+        } finally {
+            if (first != null) first.kill();
+            if (second != null) second.kill();
+            hungGemini.shutdown();
+            gemini.shutdown();
+            telegramServer.shutdown();
+        }
+    }
+
+    private static BotConfig config(MockWebServer telegram, MockWebServer gemini) {
+        String settings = "{\"token\":\"" + TOKEN + "\",\"channel\":\"@replay\",\"gemini\":\"KEY\",\"model\":\"gemini-replay\"," +
+            "\"telegram_api\":\"" + telegram.url("/") + "\",\"gemini_api\":\"" + gemini.url("/models") + "\"}";
+        return BotConfig.parse(new StringReader(settings)).get(0);
+    }
+
+    // One bot process: its lanes, session cache and BotInstance over the shared BotDatabase.
+    private final class Bot {
+        final KeyedDispatcher dispatcher = new KeyedDispatcher("replay-dispatch", 2, 64);
+        final KeyedDispatcher io = new KeyedDispatcher("replay-io", 2, 64);
+        final SessionCache sessions;
+        final BotInstance instance;
+
+        Bot(BotConfig config) {
+            BotDatabase db = BotDatabase.getInstance(context);
+            sessions = new SessionCache(db);
+            GeminiClient gemini = new GeminiClient(Http.GEMINI, config.geminiApi, config.geminiKey,
+                Collections.singletonList(config.model));
+            instance = new BotInstance(context, config, dispatcher, io, sessions, new CaptionCache(db), gemini,
+                OutboxWorker.get(context));
+            instance.start();
+        }
+
+        // Nothing handed to the lanes runs after this, and whatever was still in flight is lost.
+        void kill() throws InterruptedException {
+            while (dispatcher.pending() > 0) Thread.sleep(10);
+            instance.stop();
+            dispatcher.shutdown();
+            io.shutdown();
+            sessions.close();
+            OutboxWorker.reset();
+            BotDatabase.reset();
+        }
+    }
+
+    // getUpdates, getFile and the file itself, plus whatever the bot says to the admin.
+    private static final class TelegramStandIn extends Dispatcher {
+        private final List<String> updates = new ArrayList<>();
+        private final List<String> sent = new ArrayList<>();
+        private final byte[] poster = new byte[60_000];
+
+        TelegramStandIn() {
+            new Random(7).nextBytes(poster);
+        }
+
+        synchronized void push(long updateId, String content) {
+            updates.add("{\"update_id\":" + updateId + ",\"message\":{\"message_id\":" + updateId + ",\"from\":{\"id\":" + ADMIN +
+                "},\"chat\":{\"id\":" + ADMIN + ",\"type\":\"private\"},\"date\":" + System.currentTimeMillis() / 1000 + "," + content + "}}");
+            notifyAll();
+        }
+
+        synchronized void awaitSent(String fragment) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (sent.stream().noneMatch(text -> text.contains(fragment))) {
+                long left = deadline - System.nanoTime();
+                assertTrue("never sent: " + fragment + " in " + sent, left > 0);
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            String path = request.getPath();
+            if (path.startsWith("/file/")) return new MockResponse().setBody(new Buffer().write(poster));
+            String method = path.substring(path.lastIndexOf('/') + 1).split("\\?")[0];
+            if (method.equals("getUpdates")) {
+                return ok(updatesFrom(Long.parseLong(request.getRequestUrl().queryParameter("offset"))));
+            }
+            if (method.equals("getFile")) return ok("{\"file_id\":\"poster\",\"file_path\":\"photos/poster.jpg\"}");
+            String body = request.getBody().readUtf8();
+            String text = field(body, method.equals("sendPhoto") ? "caption" : "text");
+            if (text != null) {
+                synchronized (this) {
+                    sent.add(text);
+                    notifyAll();
+                }
+            }
+            return ok("{\"message_id\":" + (100 + request.getSequenceNumber()) + "}");
+        }
+
+        // A short long poll: whatever is at or past offset, or an empty batch after 200 ms.
+        private synchronized String updatesFrom(long offset) throws InterruptedException {
+            if (updates.size() < offset) wait(200);
+            StringBuilder result = new StringBuilder("[");
+            for (int i = (int) Math.max(0, offset - 1); i < updates.size(); i++) {
+                result.append(result.length() > 1 ? "," : "").append(updates.get(i));
+            }
+            return result.append(']').toString();
+        }
+
+        private static MockResponse ok(String result) {
+            return new MockResponse().setBody("{\"ok\":true,\"result\":" + result + "}");
+        }
+
+        private static String field(String body, String name) {
+            int at = body.indexOf("name=\"" + name + "\"");
+            if (at < 0) return null;
+            int start = body.indexOf("\r\n\r\n", at) + 4;
+            return body.substring(start, body.indexOf("\r\n--", start));
+        }
+    }
+
+    // A handler that moves the conversation one step and records which update did it.
+    private static void handle(SessionCache.View sessions, Update update) {
+        Session session = sessions.get(update.chatId);
+        session.step++;
+        session.name = (session.name == null ? "" : session.name) + " " + update.updateId;
+        sessions.put(update.chatId, session);
+        sessions.processed(update.updateId);
+    }
+
+    private static Update update(long id, long chatId) {
+        Update update = new Update();
+        update.updateId = id;
+        update.kind = Update.MESSAGE;
+        update.chatId = chatId;
+        update.fromId = chatId;
+        update.text = "step " + id;
+        return update;
+    }
+}
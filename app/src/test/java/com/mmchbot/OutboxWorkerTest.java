@@ -0,0 +1,58 @@
+package com.mmchbot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+// Offline, a drain must leave due posts alone without arranging to come straight back for them:
+// no in-process timer, no alarm. The network coming back is what starts the next drain.
+@RunWith(RobolectricTestRunner.class)
+public class OutboxWorkerTest {
+
+    private static final String TOKEN = "123456:OUTBOX";
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        BotDatabase.reset();
+        OutboxWorker.reset();
+        ConfigStore.reset();
+    }
+
+    @After
+    public void tearDown() {
+        NetworkMonitor.setOnline(true);
+        OutboxWorker.reset();
+        ConfigStore.reset();
+        BotDatabase.reset();
+    }
+
+    @Test
+    public void offlineDrainSchedulesNothing() throws Exception {
+        OutboxWorker outbox = OutboxWorker.get(context);
+        long dueAt = System.currentTimeMillis() - 60_000;
+        assertTrue(outbox.enqueue(new OutboxItem(BotConfig.botId(TOKEN), "offline-1", "@channel", "photo", "caption",
+            "https://example.com", 0, dueAt)));
+        NetworkMonitor.setOnline(false);
+
+        assertEquals(0, (int) outbox.drain(TOKEN).get(5, TimeUnit.SECONDS));
+
+        assertFalse(outbox.hasWakeup(TOKEN));
+        assertTrue(shadowOf(context.getSystemService(AlarmManager.class)).getScheduledAlarms().isEmpty());
+        // Still pending and still due: nothing was claimed or pushed back.
+        assertEquals(dueAt, BotDatabase.getInstance(context).nextOutboxAttemptAt());
+    }
+}
@@ -0,0 +1,123 @@
+package com.mmchbot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+// TelegramSender against a local Bot API stand-in that throttles with 429 + retry_after.
+@RunWith(RobolectricTestRunner.class)
+public class TelegramSenderTest {
+
+    private static final String OK = "{\"ok\":true,\"result\":{\"message_id\":1}}";
+    private static final String THROTTLED = "{\"ok\":false,\"error_code\":429," +
+            "\"description\":\"Too Many Requests: retry after 1\",\"parameters\":{\"retry_after\":1}}";
+
+    private final MockWebServer server = new MockWebServer();
+    private TelegramSender sender;
+
+    @Before
+    public void setUp() throws Exception {
+        server.start();
+        sender = new TelegramSender(new OkHttpClient(), server.url("/botTEST").toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sender.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void retryAfterIsHonored() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(429).setBody(THROTTLED));
+        server.enqueue(new MockResponse().setBody(OK));
+
+        CompletableFuture<String> result = sender.send("sendMessage", "42", TelegramSender.Priority.CHAT,
+            TelegramBodies.message(42, "hello"));
+
+        server.takeRequest(5, TimeUnit.SECONDS);
+        long throttledAt = System.nanoTime();
+        RecordedRequest retried = server.takeRequest(5, TimeUnit.SECONDS);
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - throttledAt);
+
+        assertNotNull(retried);
+        assertEquals("/botTEST/sendMessage", retried.getPath());
+        assertTrue("retried after " + waitedMs + " ms", waitedMs >= 900);
+        assertEquals(OK, result.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void callbackAnswersOvertakePacedChannelPosts() throws Exception {
+        List<String> order = new ArrayList<>();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                synchronized (order) {
+                    order.add(request.getPath());
+                }
+                return new MockResponse().setBody(OK);
+            }
+        });
+
+        // A channel gets a burst of 3, then one post every 3 s; the answer must not wait behind them.
+        List<CompletableFuture<String>> posts = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            posts.add(sender.send("sendPhoto", "@channel", TelegramSender.Priority.BULK,
+                TelegramBodies.channelPost("@channel", "photo" + i, "caption", "https://example.com/" + i)));
+        }
+        CompletableFuture<String> answer = sender.send("answerCallbackQuery", null, TelegramSender.Priority.INTERACTIVE,
+            TelegramBodies.callbackAnswer("cb1"));
+
+        assertEquals(OK, answer.get(5, TimeUnit.SECONDS));
+        for (CompletableFuture<String> post : posts) assertEquals(OK, post.get(20, TimeUnit.SECONDS));
+        synchronized (order) {
+            assertTrue(order.toString(), order.indexOf("/botTEST/answerCallbackQuery") < 4);
+        }
+    }
+
+    @Test
+    public void releasedSenderIsReplacedAndAnswersNull() throws Exception {
+        String api = server.url("/").toString().replaceAll("/$", "");
+        TelegramSender released = TelegramSender.forToken(api, "TEST");
+        TelegramSender.release(api, "TEST");
+
+        // A caller still holding the old sender (a bulk job, say) gets an answer instead of a hang.
+        assertNull(released.send("sendMessage", "42", TelegramSender.Priority.CHAT,
+            TelegramBodies.message(42, "hello")).get(5, TimeUnit.SECONDS));
+        TelegramSender replacement = TelegramSender.forToken(api, "TEST");
+        assertTrue(replacement != released);
+        TelegramSender.release(api, "TEST");
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void onlyIdempotentCallsAreRetriedAfterServerErrors() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(new MockResponse().setBody(OK));
+        assertEquals(OK, sender.send("answerCallbackQuery", null, TelegramSender.Priority.INTERACTIVE,
+            TelegramBodies.callbackAnswer("cb1")).get(10, TimeUnit.SECONDS));
+        assertEquals(2, server.getRequestCount());
+
+        // A sendPhoto that may have gone through is not repeated: that would post twice.
+        server.enqueue(new MockResponse().setResponseCode(502));
+        assertNull(sender.send("sendPhoto", "@channel", TelegramSender.Priority.BULK,
+            TelegramBodies.channelPost("@channel", "photo", "caption", "https://example.com")).get(10, TimeUnit.SECONDS));
+        assertEquals(3, server.getRequestCount());
+    }
+}
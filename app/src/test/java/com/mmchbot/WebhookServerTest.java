@@ -0,0 +1,101 @@
+package com.mmchbot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+// Raw HTTP/1.1 against the push endpoint, the way a relay talks to it.
+@RunWith(RobolectricTestRunner.class)
+public class WebhookServerTest {
+
+    private static final String UPDATE = "{\"update_id\":7,\"message\":{\"message_id\":1,\"from\":{\"id\":42}," +
+            "\"chat\":{\"id\":42,\"type\":\"private\"},\"date\":1700000000,\"text\":\"/start\"}}";
+
+    private final List<Update> received = new CopyOnWriteArrayList<>();
+    private WebhookServer server;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        server = new WebhookServer("127.0.0.1", port);
+        server.register(123, "s3cret", (update, receivedAt) -> received.add(update));
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void chunkedBodyIsAccepted() throws Exception {
+        byte[] body = UPDATE.getBytes(StandardCharsets.UTF_8);
+        int half = body.length / 2;
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(head("Transfer-Encoding: chunked\r\n"));
+            out.write((Integer.toHexString(half) + ";ext=1\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(body, 0, half);
+            out.write(("\r\n" + Integer.toHexString(body.length - half) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(body, half, body.length - half);
+            out.write("\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals("HTTP/1.1 200 OK", statusLine(socket));
+        }
+        assertEquals(1, received.size());
+        assertEquals(7, received.get(0).updateId);
+        assertEquals(42, received.get(0).fromId);
+    }
+
+    @Test
+    public void idleKeepAliveConnectionsDoNotStallANewOne() throws Exception {
+        List<Socket> idle = new ArrayList<>();
+        try {
+            // Each relay connection stays open after its answer, as keep-alive connections do.
+            for (int i = 0; i < 5; i++) {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout(5000);
+                post(socket);
+                assertEquals("HTTP/1.1 200 OK", statusLine(socket));
+                idle.add(socket);
+            }
+        } finally {
+            for (Socket socket : idle) socket.close();
+        }
+        assertEquals(5, received.size());
+    }
+
+    private static void post(Socket socket) throws Exception {
+        byte[] body = UPDATE.getBytes(StandardCharsets.UTF_8);
+        OutputStream out = socket.getOutputStream();
+        out.write(head("Content-Length: " + body.length + "\r\n"));
+        out.write(body);
+        out.flush();
+    }
+
+    private static byte[] head(String framing) {
+        return ("POST /telegram/123 HTTP/1.1\r\nHost: localhost\r\nX-Telegram-Bot-Api-Secret-Token: s3cret\r\n" +
+                "Content-Type: application/json\r\n" + framing + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Only the status line is read, so the connection stays open and idle afterwards.
+    private static String statusLine(Socket socket) throws Exception {
+        socket.setSoTimeout(5000);
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+    }
+}
@@ -0,0 +1,96 @@
+package com.mmchbot.bench;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mmchbot.GeminiRequestBody;
+import com.mmchbot.PromptTemplate;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import okio.Buffer;
+import okio.ByteString;
+
+// One generateContent request for a poster. "streaming" is GeminiRequestBody (Base64 encoded while
+// the body is written); "tree" is the old path (whole image Base64'd to a String inside a Gson tree,
+// then toString()). Both write into a reused Buffer, so gc.alloc.rate.norm is the encoder's own cost.
+// The prompt pair compares PromptTemplate.render with the String.replace it replaced.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GeminiRequestBenchmark {
+
+    // 64 KB is a typical picked PhotoSize; 400 KB is ImagePreprocessor's default budget.
+    @Param({"64", "400"})
+    public int imageKb;
+
+    private static final String TEMPLATE = "Analyze the movie '{name}' and the attached poster image.\n" +
+            "Create a premium Telegram post using this EXACT structure:\n\n" +
+            "🎬 <b>TITLE</b> (Year)\n🌟 <b>Rating:</b> ...\n🎭 <b>Starring:</b> ...\n🔥 <b>Genre:</b> ...\n\n" +
+            "STRICT RULES:\n1. Do NOT use markdown (**). Use HTML <b> and <i> only.\n" +
+            "2. Do NOT include download links in the text.\n3. Prioritize actors shown on the poster for the Cast list.";
+    private static final String NAME = "Interstellar (2014)";
+
+    private final PromptTemplate template = PromptTemplate.compile(TEMPLATE);
+    private final Buffer sink = new Buffer();
+    private ByteString image;
+    private String prompt;
+
+    @Setup
+    public void setUp() {
+        byte[] bytes = new byte[imageKb * 1024];
+        new Random(42).nextBytes(bytes);
+        image = ByteString.of(bytes);
+        prompt = template.render(NAME);
+    }
+
+    @Benchmark
+    public long streaming() throws Exception {
+        new GeminiRequestBody(prompt, "image/jpeg", new Buffer().write(image)).writeTo(sink);
+        long size = sink.size();
+        sink.clear();
+        return size;
+    }
+
+    @Benchmark
+    public long tree() {
+        JsonObject inline = new JsonObject();
+        inline.addProperty("mime_type", "image/jpeg");
+        inline.addProperty("data", Base64.getEncoder().encodeToString(image.toByteArray()));
+        JsonObject text = new JsonObject();
+        text.addProperty("text", prompt);
+        JsonObject imagePart = new JsonObject();
+        imagePart.add("inline_data", inline);
+        JsonArray parts = new JsonArray();
+        parts.add(text);
+        parts.add(imagePart);
+        JsonObject content = new JsonObject();
+        content.add("parts", parts);
+        JsonArray contents = new JsonArray();
+        contents.add(content);
+        JsonObject root = new JsonObject();
+        root.add("contents", contents);
+        sink.writeUtf8(root.toString());
+        long size = sink.size();
+        sink.clear();
+        return size;
+    }
+
+    @Benchmark
+    public void promptTemplate(Blackhole bh) {
+        bh.consume(template.render(NAME));
+    }
+
+    @Benchmark
+    public void promptReplace(Blackhole bh) {
+        bh.consume(TEMPLATE.replace("{name}", NAME));
+    }
+}
@@ -0,0 +1,140 @@
+package com.mmchbot.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.mmchbot.Session;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.Utf8;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Per-transition session cost. "json" is the old path (fresh Gson, Map -> data_json and back
+// through a TypeToken); "typed" is what a transition costs now (copy on put, one value per column).
+// Both bind their row into a buffer the way the statement sees it (8-byte integers, length-prefixed
+// UTF-8 text, -1 for NULL) and read it back the way the cursor does; rowBytes is the size of that
+// encoded row.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SessionCodecBenchmark {
+
+    private static final long CHAT_ID = 123456789L;
+
+    private final Buffer row = new Buffer();
+    private Map<String, String> map;
+    private Session session;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Written {
+        public long rowBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() { rowBytes = 0; }
+    }
+
+    @Setup
+    public void setUp() {
+        session = new Session();
+        session.step = 2;
+        session.photo = "AgACAgUAAxkBAAIBQ2VfZ2hpamtsbW5vcHFyc3R1dnd4eXoxMjM0NTY3ODkwAAMCAAN5AAMzBA";
+        session.photoUid = "AQADq7sxG6bV0FV-";
+        session.visionPhoto = "AgACAgUAAxkBAAIBQ2VfZ2hpamtsbW5vcHFyc3R1dnd4eXoxMjM0NTY3ODkwAAMCAANtAAMzBA";
+        session.visionMime = "image/jpeg";
+        session.visionBytes = 58211;
+        session.name = "Interstellar (2014)";
+        session.link = "https://example.com/d/interstellar-2014-1080p";
+        session.desc = "🎬 <b>Interstellar</b> (2014)\n⭐ 8.7/10\n🎭 Matthew McConaughey, Anne Hathaway, Jessica Chastain\n"
+                + "A team of explorers travel through a wormhole in space in an attempt to ensure humanity's survival.";
+        session.postKey = "0d5f8d3e-5b0c-4a7e-9a6f-2f3b1c9e7a11";
+
+        map = new HashMap<>();
+        map.put("photo", session.photo);
+        map.put("photo_uid", session.photoUid);
+        map.put("vision_photo", session.visionPhoto);
+        map.put("vision_mime", session.visionMime);
+        map.put("vision_bytes", String.valueOf(session.visionBytes));
+        map.put("name", session.name);
+        map.put("link", session.link);
+        map.put("desc", session.desc);
+        map.put("post_key", session.postKey);
+    }
+
+    @Benchmark
+    public Map<String, String> json(Written written) throws IOException {
+        Map<String, String> copy = new HashMap<>(map);
+        // user_states (chat_id, step, data_json)
+        row.writeLong(CHAT_ID);
+        row.writeLong(session.step);
+        bindText(new Gson().toJson(copy));
+        written.rowBytes += row.size();
+
+        row.readLong();
+        row.readLong();
+        return new Gson().fromJson(readText(), new TypeToken<Map<String, String>>(){}.getType());
+    }
+
+    @Benchmark
+    public Session typed(Written written) throws IOException {
+        Session copy = session.copy();
+        copy.updatedAt = System.currentTimeMillis();
+        // sessions, in BotDatabase.bindSession's column order
+        row.writeLong(1);
+        row.writeLong(CHAT_ID);
+        row.writeLong(copy.step);
+        bindText(copy.photo);
+        bindText(copy.photoUid);
+        bindText(copy.visionPhoto);
+        bindText(copy.visionMime);
+        row.writeLong(copy.visionBytes);
+        bindText(copy.name);
+        bindText(copy.link);
+        bindText(copy.desc);
+        bindText(copy.postKey);
+        row.writeLong(copy.createdAt);
+        row.writeLong(copy.updatedAt);
+        written.rowBytes += row.size();
+
+        row.readLong();
+        row.readLong();
+        Session s = new Session();
+        s.step = (int) row.readLong();
+        s.photo = readText();
+        s.photoUid = readText();
+        s.visionPhoto = readText();
+        s.visionMime = readText();
+        s.visionBytes = row.readLong();
+        s.name = readText();
+        s.link = readText();
+        s.desc = readText();
+        s.postKey = readText();
+        s.createdAt = row.readLong();
+        s.updatedAt = row.readLong();
+        return s;
+    }
+
+    private void bindText(String value) {
+        if (value == null) {
+            row.writeInt(-1);
+            return;
+        }
+        row.writeInt((int) Utf8.size(value));
+        row.writeUtf8(value);
+    }
+
+    private String readText() throws IOException {
+        int length = row.readInt();
+        return length < 0 ? null : row.readUtf8(length);
+    }
+}
@@ -0,0 +1,52 @@
+package com.mmchbot.bench;
+
+import com.mmchbot.TelegramBodies;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+// Bot API bodies as they go on the wire (build + writeTo): a chat reply per conversation step,
+// the admin's preview with its inline keyboard, and the channel post with its download button.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TelegramBodyBenchmark {
+
+    private static final long CHAT_ID = 123456789L;
+    private static final String PHOTO = "AgACAgUAAxkBAAIBQ2VfZ2hpamtsbW5vcHFyc3R1dnd4eXoxMjM0NTY3ODkwAAMCAAN5AAMzBA";
+    private static final String LINK = "https://example.com/d/interstellar-2014-1080p?ref=\"channel\"";
+    private static final String CAPTION = "🎬 <b>Interstellar</b> (2014)\n▬▬▬▬▬▬▬▬▬▬▬▬▬▬\n🌟 <b>Rating:</b> 8.7/10 (IMDb)\n" +
+            "🎭 <b>Starring:</b> Matthew McConaughey, Anne Hathaway, Jessica Chastain\n🔥 <b>Genre:</b> Sci-Fi | Drama\n\n" +
+            "📖 <b>Storyline:</b>\nA team of explorers travel through a wormhole in space in an attempt to ensure humanity's survival.\n\n" +
+            "#SciFi #Nolan #Classic";
+
+    private final Buffer sink = new Buffer();
+
+    @Benchmark
+    public long message() throws Exception {
+        return write(TelegramBodies.message(CHAT_ID, "✅ Name Saved.\nSend **Download Link**."));
+    }
+
+    @Benchmark
+    public long preview() throws Exception {
+        return write(TelegramBodies.preview(CHAT_ID, PHOTO, CAPTION));
+    }
+
+    @Benchmark
+    public long channelPost() throws Exception {
+        return write(TelegramBodies.channelPost("@mmch_channel", PHOTO, CAPTION, LINK));
+    }
+
+    private long write(RequestBody body) throws Exception {
+        body.writeTo(sink);
+        long size = sink.size();
+        sink.clear();
+        return size;
+    }
+}
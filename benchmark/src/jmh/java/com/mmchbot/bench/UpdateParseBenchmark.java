@@ -0,0 +1,131 @@
+package com.mmchbot.bench;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.mmchbot.Update;
+import com.mmchbot.UpdateDecoder;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+// getUpdates decoding: UpdateDecoder (streaming) vs. the old String + JsonParser tree.
+// Run with the gc profiler and compare gc.alloc.rate.norm (bytes per batch) across releases.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class UpdateParseBenchmark {
+
+    @Param({"1", "20", "100"})
+    public int batch;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder("{\"ok\":true,\"result\":[");
+        for (int i = 0; i < batch; i++) {
+            if (i > 0) sb.append(',');
+            switch (i % 3) {
+                case 0: sb.append(textUpdate(i)); break;
+                case 1: sb.append(photoUpdate(i)); break;
+                default: sb.append(callbackUpdate(i));
+            }
+        }
+        body = sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void streaming(Blackhole bh) throws Exception {
+        UpdateDecoder.read(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8), bh::consume);
+    }
+
+    @Benchmark
+    public void tree(Blackhole bh) {
+        JsonObject root = JsonParser.parseString(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+        JsonArray result = root.getAsJsonArray("result");
+        for (int i = 0; i < result.size(); i++) {
+            bh.consume(fromTree(result.get(i).getAsJsonObject()));
+        }
+    }
+
+    // Same fields the decoder extracts, pulled out of the tree the way handleUpdates used to.
+    private static Update fromTree(JsonObject update) {
+        Update u = new Update();
+        u.updateId = update.get("update_id").getAsLong();
+        if (update.has("message")) {
+            JsonObject message = update.getAsJsonObject("message");
+            u.kind = Update.MESSAGE;
+            u.chatId = message.getAsJsonObject("chat").get("id").getAsLong();
+            u.date = message.get("date").getAsLong();
+            if (message.has("text")) u.text = message.get("text").getAsString();
+            if (message.has("photo")) {
+                JsonArray photos = message.getAsJsonArray("photo");
+                u.photos = new ArrayList<>(photos.size());
+                for (int i = 0; i < photos.size(); i++) {
+                    JsonObject p = photos.get(i).getAsJsonObject();
+                    Update.PhotoSize size = new Update.PhotoSize();
+                    size.fileId = p.get("file_id").getAsString();
+                    size.uniqueId = p.get("file_unique_id").getAsString();
+                    size.width = p.get("width").getAsInt();
+                    size.height = p.get("height").getAsInt();
+                    size.fileSize = p.get("file_size").getAsLong();
+                    u.photos.add(size);
+                }
+            }
+        } else if (update.has("callback_query")) {
+            JsonObject callback = update.getAsJsonObject("callback_query");
+            u.kind = Update.CALLBACK;
+            u.callbackId = callback.get("id").getAsString();
+            u.callbackData = callback.get("data").getAsString();
+            u.chatId = callback.getAsJsonObject("message").getAsJsonObject("chat").get("id").getAsLong();
+        }
+        return u;
+    }
+
+    private static String user(int i) {
+        return "{\"id\":" + (100000 + i) + ",\"is_bot\":false,\"first_name\":\"Admin\",\"username\":\"admin" + i
+                + "\",\"language_code\":\"en\"}";
+    }
+
+    private static String chat(int i) {
+        return "{\"id\":" + (100000 + i) + ",\"first_name\":\"Admin\",\"username\":\"admin" + i + "\",\"type\":\"private\"}";
+    }
+
+    private static String textUpdate(int i) {
+        return "{\"update_id\":" + (900000 + i) + ",\"message\":{\"message_id\":" + i + ",\"from\":" + user(i)
+                + ",\"chat\":" + chat(i) + ",\"date\":1700000000,\"text\":\"Interstellar (2014) 1080p\"}}";
+    }
+
+    private static String photoUpdate(int i) {
+        StringBuilder sizes = new StringBuilder();
+        int[][] dims = {{90, 51}, {320, 180}, {800, 450}, {1280, 720}};
+        for (int s = 0; s < dims.length; s++) {
+            if (s > 0) sizes.append(',');
+            sizes.append("{\"file_id\":\"AgACAgUAAxkBAAIBQ2VfZ2hpamtsbW5vcHFyc3R1dnd4eXo").append(i).append('_').append(s)
+                    .append("\",\"file_unique_id\":\"AQADq7sxG").append(i).append(s)
+                    .append("\",\"file_size\":").append(dims[s][0] * dims[s][1] / 8)
+                    .append(",\"width\":").append(dims[s][0]).append(",\"height\":").append(dims[s][1]).append('}');
+        }
+        return "{\"update_id\":" + (900000 + i) + ",\"message\":{\"message_id\":" + i + ",\"from\":" + user(i)
+                + ",\"chat\":" + chat(i) + ",\"date\":1700000000,\"photo\":[" + sizes + "]}}";
+    }
+
+    private static String callbackUpdate(int i) {
+        return "{\"update_id\":" + (900000 + i) + ",\"callback_query\":{\"id\":\"4382" + i + "\",\"from\":" + user(i)
+                + ",\"message\":{\"message_id\":" + i + ",\"from\":" + user(i) + ",\"chat\":" + chat(i)
+                + ",\"date\":1700000000,\"caption\":\"🎬 Interstellar\\n⭐ 8.7\",\"reply_markup\":{\"inline_keyboard\":"
+                + "[[{\"text\":\"✅ Post Now\",\"callback_data\":\"post_now\"}]]}},\"chat_instance\":\"-1\",\"data\":\"post_now\"}}";
+    }
+}